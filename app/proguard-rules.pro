@@ -50,6 +50,15 @@
     static final long serialVersionUID;
 }
 
+############################################
+# NATIVE
+############################################
+
+# Called by name from the native event thread
+-keepclassmembers class com.music.player.player.PlayerController {
+    private static void onNativeEvent(long, int, int);
+}
+
 ############################################
 # LOGGING
 ############################################
@@ -1,8 +1,12 @@
 #include "audio_player.h"
 #include <SLES/OpenSLES.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
 
 #ifdef __ANDROID__
 #include <android/log.h>
@@ -15,93 +19,378 @@
 #define LOGE(...) printf("[ERROR] " __VA_ARGS__); printf("\n")
 #endif
 
-AudioPlayer* createAudioPlayer(const char* filePath) {
-    (void)filePath; // Mark parameter as unused
-    
-    AudioPlayer* player = (AudioPlayer*)malloc(sizeof(AudioPlayer));
-    if (!player) {
-        LOGE("Failed to allocate memory for AudioPlayer");
-        return NULL;
+// Process-wide OpenSL ES engine and output mix. Creating and realizing them
+// is the slow part of starting a player, so they are built once and shared;
+// only the per-track player object is created for each load.
+static pthread_mutex_t engineLock = PTHREAD_MUTEX_INITIALIZER;
+static SLObjectItf sharedEngineObject = NULL;
+static SLEngineItf sharedEngineEngine = NULL;
+static SLObjectItf sharedOutputMixObject = NULL;
+static int livePlayers = 0;
+
+// Guards AudioPlayer.next, which the callback thread reads. The callback only
+// ever try-locks it and retries on its next buffer, so it never waits here.
+static pthread_mutex_t chainLock = PTHREAD_MUTEX_INITIALIZER;
+
+// The player whose output the visualizer taps; guarded so a reader never
+// sees it freed. Only set off the callback thread.
+static pthread_mutex_t tapLock = PTHREAD_MUTEX_INITIALIZER;
+static AudioPlayer* audiblePlayer = NULL;
+
+// Play events for Java go through a pipe: posting from the audio callback
+// never blocks, and the reader sleeps in read() while nothing happens
+static pthread_once_t eventPipeOnce = PTHREAD_ONCE_INIT;
+static int eventPipe[2] = {-1, -1};
+static atomic_int droppedEvents = 0;
+
+// Last id handed to a player
+static atomic_llong lastPlayerId = 0;
+
+// Live players, so a command can find its player by id, or find it gone.
+// Held while a command runs; a player is unlisted before it is torn down.
+static pthread_mutex_t registryLock = PTHREAD_MUTEX_INITIALIZER;
+static AudioPlayer* livePlayerList = NULL;
+
+static void runCommand(const PlayerEvent* command);
+
+// Overlap between consecutive tracks, 0 for a plain gapless switch
+static atomic_int crossfadeMs = 0;
+
+// Silence queued when a splice has to wait for the chain lock and there is
+// nothing else to play meanwhile (~1.5 ms at 44.1 kHz)
+#define SPLICE_RETRY_FRAMES 64
+
+// Samples the decode thread produces per ring write
+#define DECODE_CHUNK_SAMPLES 4096
+
+static void destroyEngineLocked(void) {
+    if (sharedOutputMixObject) {
+        (*sharedOutputMixObject)->Destroy(sharedOutputMixObject);
+        sharedOutputMixObject = NULL;
     }
-    
-    memset(player, 0, sizeof(AudioPlayer));
-    
-    // Initialize OpenSL ES engine
+    if (sharedEngineObject) {
+        (*sharedEngineObject)->Destroy(sharedEngineObject);
+        sharedEngineObject = NULL;
+    }
+    sharedEngineEngine = NULL;
+}
+
+static bool createEngineLocked(void) {
     SLresult result;
-    
+
     // Create engine
-    result = slCreateEngine(&player->engineObject, 0, NULL, 0, NULL, NULL);
+    result = slCreateEngine(&sharedEngineObject, 0, NULL, 0, NULL, NULL);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to create engine: %d", result);
-        free(player);
-        return NULL;
+        sharedEngineObject = NULL;
+        return false;
     }
-    
+
     // Realize engine
-    result = (*player->engineObject)->Realize(player->engineObject, SL_BOOLEAN_FALSE);
+    result = (*sharedEngineObject)->Realize(sharedEngineObject, SL_BOOLEAN_FALSE);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to realize engine: %d", result);
-        (*player->engineObject)->Destroy(player->engineObject);
-        free(player);
-        return NULL;
+        destroyEngineLocked();
+        return false;
     }
-    
+
     // Get engine interface
-    result = (*player->engineObject)->GetInterface(
-        player->engineObject, SL_IID_ENGINE, &player->engineEngine);
+    result = (*sharedEngineObject)->GetInterface(
+        sharedEngineObject, SL_IID_ENGINE, &sharedEngineEngine);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to get engine interface: %d", result);
-        (*player->engineObject)->Destroy(player->engineObject);
-        free(player);
-        return NULL;
+        destroyEngineLocked();
+        return false;
     }
-    
+
     // Create output mix
-    result = (*player->engineEngine)->CreateOutputMix(
-        player->engineEngine, &player->outputMixObject, 0, NULL, NULL);
+    result = (*sharedEngineEngine)->CreateOutputMix(
+        sharedEngineEngine, &sharedOutputMixObject, 0, NULL, NULL);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to create output mix: %d", result);
-        (*player->engineObject)->Destroy(player->engineObject);
-        free(player);
-        return NULL;
+        sharedOutputMixObject = NULL;
+        destroyEngineLocked();
+        return false;
     }
-    
+
     // Realize output mix
-    result = (*player->outputMixObject)->Realize(
-        player->outputMixObject, SL_BOOLEAN_FALSE);
+    result = (*sharedOutputMixObject)->Realize(
+        sharedOutputMixObject, SL_BOOLEAN_FALSE);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to realize output mix: %d", result);
-        (*player->outputMixObject)->Destroy(player->outputMixObject);
-        (*player->engineObject)->Destroy(player->engineObject);
-        free(player);
+        destroyEngineLocked();
+        return false;
+    }
+
+    LOGI("OpenSL ES engine initialized successfully");
+    return true;
+}
+
+// Hands out the shared engine, creating it on first use
+bool acquireAudioEngine(SLEngineItf* engine, SLObjectItf* outputMix) {
+    bool ok = true;
+    pthread_mutex_lock(&engineLock);
+    if (!sharedEngineObject) {
+        ok = createEngineLocked();
+    }
+    if (ok) {
+        *engine = sharedEngineEngine;
+        *outputMix = sharedOutputMixObject;
+    }
+    pthread_mutex_unlock(&engineLock);
+    return ok;
+}
+
+// Tears the shared engine down, unless a player still uses it
+void releaseAudioEngine(void) {
+    pthread_mutex_lock(&engineLock);
+    if (livePlayers == 0 && sharedEngineObject) {
+        destroyEngineLocked();
+        LOGI("OpenSL ES engine released");
+    }
+    pthread_mutex_unlock(&engineLock);
+}
+
+static void createEventPipe(void) {
+    if (pipe(eventPipe) != 0) {
+        LOGE("Failed to create event pipe: %d", errno);
+        eventPipe[0] = eventPipe[1] = -1;
+        return;
+    }
+    fcntl(eventPipe[1], F_SETFL, O_NONBLOCK);
+}
+
+// Queues an event for waitPlayerEvent; safe on the audio callback thread
+void postPlayerEvent(AudioPlayer* player, int type, int arg) {
+    pthread_once(&eventPipeOnce, createEventPipe);
+    if (eventPipe[1] < 0) {
+        return;
+    }
+    PlayerEvent event = {player->id, type, arg};
+    if (write(eventPipe[1], &event, sizeof(event)) != (ssize_t)sizeof(event)) {
+        atomic_fetch_add(&droppedEvents, 1); // logged by the event thread
+    }
+}
+
+// Event thread: logs for the callback, which must not block in the logger
+static void logEvent(const PlayerEvent* event) {
+    int dropped = atomic_exchange(&droppedEvents, 0);
+    if (dropped > 0) {
+        LOGE("Dropped %d player events", dropped);
+    }
+    if (event->type == PLAYER_EVENT_END) {
+        LOGI("Audio finished%s", event->arg ? " (next track took over)" : "");
+    } else if (event->type == PLAYER_EVENT_ERROR && event->arg == PLAYER_ERROR_OUTPUT) {
+        LOGE("Failed to enqueue buffer");
+    }
+}
+
+// Blocks until the next event for Java, carrying out the commands posted
+// on the way; false if events cannot be delivered at all
+bool waitPlayerEvent(PlayerEvent* event) {
+    pthread_once(&eventPipeOnce, createEventPipe);
+    if (eventPipe[0] < 0) {
+        return false;
+    }
+    for (;;) {
+        ssize_t n;
+        do {
+            n = read(eventPipe[0], event, sizeof(*event));
+        } while (n < 0 && errno == EINTR);
+        if (n != (ssize_t)sizeof(*event)) {
+            return false;
+        }
+        logEvent(event);
+        if (event->type < PLAYER_COMMAND_CROSSFADE) {
+            return true;
+        }
+        runCommand(event);
+    }
+}
+
+AudioPlayer* createAudioPlayer(const char* filePath) {
+    (void)filePath; // Mark parameter as unused
+    
+    AudioPlayer* player = (AudioPlayer*)malloc(sizeof(AudioPlayer));
+    if (!player) {
+        LOGE("Failed to allocate memory for AudioPlayer");
         return NULL;
     }
     
-    LOGI("OpenSL ES engine initialized successfully");
+    memset(player, 0, sizeof(AudioPlayer));
+    player->id = (int64_t)atomic_fetch_add(&lastPlayerId, 1) + 1;
+    atomic_init(&player->fadeOutMs, 0);
+    atomic_init(&player->seekRequestMs, -1);
+    atomic_init(&player->markerMs, -1);
+    
+    if (!acquireAudioEngine(&player->engineEngine, &player->outputMixObject)) {
+        free(player);
+        return NULL;
+    }
+    sem_init(&player->wake, 0, 0);
+
+    pthread_mutex_lock(&engineLock);
+    livePlayers++;
+    pthread_mutex_unlock(&engineLock);
+
+    pthread_mutex_lock(&registryLock);
+    player->nextLive = livePlayerList;
+    livePlayerList = player;
+    pthread_mutex_unlock(&registryLock);
     return player;
 }
 
-void setupUriAudioPlayer(AudioPlayer* player, const char* filePath) {
+static void destroyAudioOutput(AudioOutput* output) {
+    if (output->playerPlay) {
+        (*output->playerPlay)->SetPlayState(output->playerPlay, SL_PLAYSTATE_STOPPED);
+    }
+    if (output->playerObject) {
+        (*output->playerObject)->Destroy(output->playerObject);
+    }
+    for (int i = 0; i < RENDER_BUFFERS; i++) {
+        free(output->renderBuffers[i]);
+    }
+    free(output);
+}
+
+static void setAudible(AudioPlayer* player) {
+    pthread_mutex_lock(&tapLock);
+    audiblePlayer = player;
+    pthread_mutex_unlock(&tapLock);
+}
+
+// True once every sample of the track has been decoded into the ring
+static bool decodingOver(AudioPlayer* player) {
+    return atomic_load(&player->seekRequestMs) < 0 && atomic_load(&player->decodeEnded);
+}
+
+// Decode thread: restarts decoding at `ms`, the callback drops what it had
+static void restartDecoder(AudioPlayer* player, int ms) {
+    if (!pcmDecoderSeek(&player->decoder, (int64_t)ms * 1000)) {
+        atomic_store(&player->decodeEnded, true);
+        return;
+    }
+    player->flushTo = atomic_load_explicit(&player->ring.head, memory_order_relaxed);
+    player->flushBaseMs = (SLmillisecond)ms;
+    atomic_store(&player->flushPending, true);
+}
+
+// Decode thread: carries on from the start right behind the last sample
+static void loopDecoder(AudioPlayer* player) {
+    if (!pcmDecoderSeek(&player->decoder, 0)) {
+        atomic_store(&player->decodeEnded, true);
+        return;
+    }
+    player->loopAt = atomic_load_explicit(&player->ring.head, memory_order_relaxed);
+    atomic_store(&player->loopPending, true);
+    atomic_store(&player->decodeEnded, false);
+}
+
+static void* decodeLoop(void* context) {
+    AudioPlayer* player = context;
+    int16_t chunk[DECODE_CHUNK_SAMPLES];
+
+    while (!atomic_load(&player->stopDecoding)) {
+        if (atomic_load(&player->seekRequestMs) >= 0) {
+            // Cleared before the request is taken, so decodingOver() never
+            // sees both the request gone and the old end flag
+            atomic_store(&player->decodeEnded, false);
+            int ms = atomic_exchange(&player->seekRequestMs, -1);
+            if (ms >= 0) {
+                restartDecoder(player, ms);
+            }
+            continue;
+        }
+
+        if (atomic_load(&player->decodeEnded)) {
+            if (atomic_load(&player->looping)) {
+                loopDecoder(player);
+            } else {
+                sem_wait(&player->wake); // idle until a seek, loop or stop
+            }
+            continue;
+        }
+
+        // Ring full: sleep until the callback has drained some of it
+        if (pcmRingSpace(&player->ring) < DECODE_CHUNK_SAMPLES) {
+            sem_wait(&player->wake);
+            continue;
+        }
+
+        int samples = pcmDecoderRead(&player->decoder, chunk, DECODE_CHUNK_SAMPLES);
+        if (samples > 0) {
+            pcmRingWrite(&player->ring, chunk, (uint32_t)samples);
+        } else if (samples == PCM_DECODER_END) {
+            if (atomic_load(&player->looping)) {
+                loopDecoder(player);
+            } else {
+                atomic_store(&player->decodeEnded, true);
+                LOGI("Decoding finished");
+            }
+        } else if (samples == PCM_DECODER_ERROR) {
+            LOGE("Decoding failed, ending track");
+            atomic_store(&player->decodeEnded, true);
+            postPlayerEvent(player, PLAYER_EVENT_ERROR, PLAYER_ERROR_DECODE);
+        }
+    }
+    return NULL;
+}
+
+void setupPcmAudioPlayer(AudioPlayer* player, const char* filePath) {
     if (!player || !filePath) {
         LOGE("Player or filePath is NULL");
         return;
     }
     
     SLresult result;
+
+    // Open decoder; it has already decoded the first buffer, so its format is final
+    if (!pcmDecoderOpen(&player->decoder, filePath)) {
+        LOGE("Failed to open decoder for: %s", filePath);
+        return;
+    }
+    player->decoderOpen = true;
+    int channels = player->decoder.channels;
+
+    if (!pcmRingInit(&player->ring, RING_SAMPLES)) {
+        LOGE("Failed to allocate PCM ring");
+        return;
+    }
+    AudioOutput* output = (AudioOutput*)calloc(1, sizeof(AudioOutput));
+    if (!output) {
+        LOGE("Failed to allocate audio output");
+        return;
+    }
+    output->sampleRate = player->decoder.sampleRate;
+    output->channels = channels;
+    atomic_init(&output->source, player);
+    player->output = output;
+    for (int i = 0; i < RENDER_BUFFERS; i++) {
+        output->renderBuffers[i] = (int16_t*)calloc(RENDER_FRAMES * channels, sizeof(int16_t));
+        if (!output->renderBuffers[i]) {
+            LOGE("Failed to allocate render buffer");
+            return;
+        }
+    }
     
-    // Configure data source for URI
-    SLDataLocator_URI loc_uri = {
-        SL_DATALOCATOR_URI,
-        (SLchar*)filePath
+    // Configure data source: PCM pushed through a buffer queue
+    SLDataLocator_AndroidSimpleBufferQueue loc_bq = {
+        SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE,
+        RENDER_BUFFERS
     };
     
-    SLDataFormat_MIME format_mime = {
-        SL_DATAFORMAT_MIME,
-        NULL,
-        SL_CONTAINERTYPE_UNSPECIFIED
+    SLDataFormat_PCM format_pcm = {
+        SL_DATAFORMAT_PCM,
+        (SLuint32)channels,
+        (SLuint32)player->decoder.sampleRate * 1000, // milliHertz
+        SL_PCMSAMPLEFORMAT_FIXED_16,
+        SL_PCMSAMPLEFORMAT_FIXED_16,
+        // The decoder hands out mono or stereo only, wider sources are downmixed
+        channels == 1 ? SL_SPEAKER_FRONT_CENTER : (SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT),
+        SL_BYTEORDER_LITTLEENDIAN
     };
     
-    SLDataSource audioSrc = {&loc_uri, &format_mime};
+    SLDataSource audioSrc = {&loc_bq, &format_pcm};
     
     // Configure data sink
     SLDataLocator_OutputMix loc_outmix = {
@@ -112,95 +401,465 @@ void setupUriAudioPlayer(AudioPlayer* player, const char* filePath) {
     SLDataSink audioSnk = {&loc_outmix, NULL};
     
     // Create audio player
-    const SLInterfaceID ids[3] = {
-        SL_IID_PLAY,
-        SL_IID_SEEK,
+    const SLInterfaceID ids[2] = {
+        SL_IID_ANDROIDSIMPLEBUFFERQUEUE,
         SL_IID_VOLUME
     };
     
-    const SLboolean req[3] = {
-        SL_BOOLEAN_TRUE,
+    const SLboolean req[2] = {
         SL_BOOLEAN_TRUE,
         SL_BOOLEAN_TRUE
     };
     
     result = (*player->engineEngine)->CreateAudioPlayer(
         player->engineEngine,
-        &player->playerObject,
+        &output->playerObject,
         &audioSrc,
         &audioSnk,
-        3,
+        2,
         ids,
         req
     );
     
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to create audio player: %d", result);
+        output->playerObject = NULL;
         return;
     }
     
     // Realize player
-    result = (*player->playerObject)->Realize(
-        player->playerObject, SL_BOOLEAN_FALSE);
+    result = (*output->playerObject)->Realize(
+        output->playerObject, SL_BOOLEAN_FALSE);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to realize player: %d", result);
         return;
     }
     
     // Get play interface
-    result = (*player->playerObject)->GetInterface(
-        player->playerObject, SL_IID_PLAY, &player->playerPlay);
+    result = (*output->playerObject)->GetInterface(
+        output->playerObject, SL_IID_PLAY, &output->playerPlay);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to get play interface: %d", result);
         return;
     }
     
-    // Get seek interface
-    result = (*player->playerObject)->GetInterface(
-        player->playerObject, SL_IID_SEEK, &player->playerSeek);
+    // Get buffer queue interface
+    result = (*output->playerObject)->GetInterface(
+        output->playerObject, SL_IID_ANDROIDSIMPLEBUFFERQUEUE, &output->playerQueue);
     if (result != SL_RESULT_SUCCESS) {
-        // Seek interface not available, continuing without seek
+        LOGE("Failed to get buffer queue interface: %d", result);
+        return;
     }
     
     // Get volume interface
-    result = (*player->playerObject)->GetInterface(
-        player->playerObject, SL_IID_VOLUME, &player->playerVolume);
+    result = (*output->playerObject)->GetInterface(
+        output->playerObject, SL_IID_VOLUME, &output->playerVolume);
     if (result != SL_RESULT_SUCCESS) {
         // Volume interface not available, continuing without volume control
     }
     
-    // Set callback for events
-    result = (*player->playerPlay)->RegisterCallback(
-        player->playerPlay, playbackCallback, player);
+    // Set callback for drained buffers
+    result = (*output->playerQueue)->RegisterCallback(
+        output->playerQueue, bufferQueueCallback, output);
     if (result != SL_RESULT_SUCCESS) {
         LOGE("Failed to register callback: %d", result);
+        return;
     }
-    
-    // Enable event callback
-    result = (*player->playerPlay)->SetCallbackEventsMask(
-        player->playerPlay, SL_PLAYEVENT_HEADATEND);
-    if (result != SL_RESULT_SUCCESS) {
-        LOGE("Failed to set event mask: %d", result);
+
+    // Start decoding; the ring fills up now, before play is even pressed
+    if (pthread_create(&player->decodeThread, NULL, decodeLoop, player) != 0) {
+        LOGE("Failed to start decode thread");
+        return;
     }
+    player->decodeThreadStarted = true;
     
     player->isPrepared = true;
-    LOGI("Audio player successfully prepared for: %s", filePath);
+    LOGI("Audio player successfully prepared for: %s (%d Hz, %d ch)",
+        filePath, player->decoder.sampleRate, channels);
 }
 
-void SLAPIENTRY playbackCallback(
-    SLPlayItf caller,
-    void* context,
-    SLuint32 event
+static void writeTap(AudioPlayer* player, const int16_t* pcm, uint32_t frames) {
+    uint32_t head = atomic_load_explicit(&player->tapHead, memory_order_relaxed);
+    if (player->decoder.channels == 2) {
+        for (uint32_t f = 0; f < frames; f++) {
+            player->tap[(head + f) & (TAP_SAMPLES - 1)] =
+                (int16_t)(((int32_t)pcm[2 * f] + pcm[2 * f + 1]) / 2);
+        }
+    } else {
+        for (uint32_t f = 0; f < frames; f++) {
+            player->tap[(head + f) & (TAP_SAMPLES - 1)] = pcm[f];
+        }
+    }
+    atomic_store_explicit(&player->tapHead, head + frames, memory_order_release);
+}
+
+// Applies a seek or loop restart the decode thread has signalled
+static void applyDecoderRestart(AudioPlayer* player) {
+    if (atomic_exchange(&player->flushPending, false)) {
+        pcmRingSkipTo(&player->ring, player->flushTo);
+        atomic_store(&player->positionBaseMs, player->flushBaseMs);
+        atomic_store(&player->framesRendered, 0);
+        // A loop restart from before the seek is stale now
+        if ((int32_t)(player->loopAt - player->flushTo) < 0) {
+            atomic_store(&player->loopPending, false);
+        }
+    }
+    if (atomic_load(&player->loopPending)) {
+        uint32_t tail = atomic_load_explicit(&player->ring.tail, memory_order_relaxed);
+        if ((int32_t)(tail - player->loopAt) >= 0) {
+            atomic_store(&player->positionBaseMs, 0);
+            atomic_store(&player->framesRendered,
+                (tail - player->loopAt) / (uint32_t)player->decoder.channels);
+            atomic_store(&player->loopPending, false);
+        }
+    }
+}
+
+static SLmillisecond renderedPosition(AudioPlayer* player) {
+    uint64_t frames = atomic_load(&player->framesRendered);
+    return atomic_load(&player->positionBaseMs)
+        + (SLmillisecond)(frames * 1000 / (uint64_t)player->decoder.sampleRate);
+}
+
+// Posts the marker event once playback has reached the marker
+static void checkMarker(AudioPlayer* player) {
+    int marker = atomic_load(&player->markerMs);
+    if (marker >= 0 && renderedPosition(player) >= (SLmillisecond)marker
+        && atomic_compare_exchange_strong(&player->markerMs, &marker, -1)) {
+        postPlayerEvent(player, PLAYER_EVENT_MARKER, marker);
+    }
+}
+
+static uint32_t msToFrames(AudioPlayer* player, int ms) {
+    return (uint32_t)((uint64_t)ms * (uint64_t)player->decoder.sampleRate / 1000);
+}
+
+// The player's output; the callback thread may swap it on a splice
+static AudioOutput* outputOf(AudioPlayer* player) {
+    pthread_mutex_lock(&chainLock);
+    AudioOutput* output = player->output;
+    pthread_mutex_unlock(&chainLock);
+    return output;
+}
+
+static bool startRendering(AudioPlayer* player);
+
+// Once the track is within the crossfade length of its end, asks the event
+// thread to start the primed next track fading in over this one
+static void maybeStartCrossfade(AudioPlayer* player) {
+    int fadeMs = atomic_load(&crossfadeMs);
+    SLmillisecond duration = (SLmillisecond)(player->decoder.durationUs / 1000);
+    if (fadeMs <= 0 || duration == 0 || atomic_load(&player->fadingOut)
+        || atomic_load(&player->startRequested) || atomic_load(&player->looping)) {
+        return;
+    }
+    if ((SLmillisecond)fadeMs > duration / 2) {
+        fadeMs = (int)(duration / 2); // short track: overlap half of it at most
+    }
+    if (renderedPosition(player) + (SLmillisecond)fadeMs < duration) {
+        return;
+    }
+
+    if (pthread_mutex_trylock(&chainLock) != 0) {
+        return; // the chain is changing, look again at the next buffer
+    }
+    AudioPlayer* next = player->next;
+    bool ready = next && next->isPrepared && atomic_load(&next->output->queued) == 0;
+    pthread_mutex_unlock(&chainLock);
+    if (ready) {
+        atomic_store(&player->startRequested, true);
+        postPlayerEvent(player, PLAYER_COMMAND_CROSSFADE, fadeMs);
+    }
+}
+
+// Takes the primed next track off the chain for the event thread to start;
+// NULL when it is gone, already spliced in or already playing
+static AudioPlayer* detachNext(AudioPlayer* player) {
+    pthread_mutex_lock(&chainLock);
+    AudioPlayer* next = player->next;
+    if (next && (!next->isPrepared || atomic_load(&next->output->queued) != 0)) {
+        next = NULL;
+    }
+    if (next) {
+        player->next = NULL;
+        player->handedOff = true;
+    }
+    pthread_mutex_unlock(&chainLock);
+    return next;
+}
+
+static void reattachNext(AudioPlayer* player, AudioPlayer* next) {
+    pthread_mutex_lock(&chainLock);
+    player->next = next;
+    player->handedOff = false;
+    pthread_mutex_unlock(&chainLock);
+}
+
+// Event thread: starts the next track fading in; this one begins fading out
+// at its next buffer
+static void runCrossfade(AudioPlayer* player, int fadeMs) {
+    AudioPlayer* next = detachNext(player);
+    if (!next) {
+        return;
+    }
+    fadeBegin(&next->fade, 1, msToFrames(next, fadeMs));
+    if (!startRendering(next)) {
+        next->fade.direction = 0;
+        reattachNext(player, next);
+        LOGE("Failed to start next track for crossfade");
+        return;
+    }
+    // fadeOutMs first: a callback that sees fadingOut also sees the fade
+    atomic_store(&player->fadeOutMs, fadeMs);
+    atomic_store(&player->fadingOut, true);
+    next->finished = false;
+    setAudible(next);
+    postPlayerEvent(player, PLAYER_EVENT_CROSSFADE, fadeMs);
+    LOGI("Crossfading into next track over %d ms", fadeMs);
+}
+
+// Event thread: this track's output has played out. Starts the next track on
+// its own output when it could not be spliced (it decodes to another format),
+// then reports the end.
+static void runHandOff(AudioPlayer* player) {
+    AudioPlayer* next = atomic_load(&player->looping) ? NULL : detachNext(player);
+    if (next && startRendering(next)) {
+        next->finished = false;
+        setAudible(next);
+        LOGI("Gapless hand-off to next track");
+    } else if (next) {
+        reattachNext(player, next);
+        LOGE("Failed to start next track");
+    }
+    postPlayerEvent(player, PLAYER_EVENT_END, hasHandedOff(player) ? 1 : 0);
+}
+
+static AudioPlayer* findPlayerLocked(int64_t id) {
+    for (AudioPlayer* p = livePlayerList; p; p = p->nextLive) {
+        if (p->id == id) {
+            return p;
+        }
+    }
+    return NULL;
+}
+
+// Event thread; a player released since the command was posted is skipped
+static void runCommand(const PlayerEvent* command) {
+    pthread_mutex_lock(&registryLock);
+    AudioPlayer* player = findPlayerLocked(command->playerId);
+    if (player && command->type == PLAYER_COMMAND_CROSSFADE) {
+        runCrossfade(player, command->arg);
+    } else if (player && command->type == PLAYER_COMMAND_HAND_OFF) {
+        runHandOff(player);
+    } else if (player && command->type == PLAYER_COMMAND_SPLICED) {
+        setAudible(player);
+        LOGI("Gapless splice into next track");
+    }
+    pthread_mutex_unlock(&registryLock);
+}
+
+// Renders up to `wanted` samples of the player's ring into `buffer` and
+// accounts for them; returns how many there were
+static uint32_t renderFrom(AudioPlayer* player, int16_t* buffer, uint32_t wanted) {
+    uint32_t channels = (uint32_t)player->decoder.channels;
+    applyDecoderRestart(player);
+    uint32_t got = pcmRingRead(&player->ring, buffer, wanted);
+    sem_post(&player->wake);
+    fadeApply(&player->fade, buffer, got / channels, (int)channels);
+    atomic_fetch_add(&player->framesRendered, got / channels);
+    writeTap(player, buffer, got / channels);
+    checkMarker(player);
+    return got;
+}
+
+// Sample-accurate hand-off: when the primed next track decodes to the same
+// format, its PCM continues in this output right behind the last sample.
+// The tracks swap outputs, so the next one owns the running output and the
+// finished one the idle one it never started. Returns the next track, or
+// NULL when it has to start on its own output instead, or when the chain is
+// being changed right now (`busy`) and the splice is to be tried again.
+static AudioPlayer* spliceNext(AudioOutput* output, AudioPlayer* player, bool* busy) {
+    if (pthread_mutex_trylock(&chainLock) != 0) {
+        *busy = true;
+        return NULL;
+    }
+    AudioPlayer* next = player->next;
+    bool splice = next && next->isPrepared
+        && !atomic_load(&player->looping) && !atomic_load(&player->fadingOut)
+        && atomic_load(&next->output->queued) == 0
+        && next->decoder.sampleRate == output->sampleRate
+        && next->decoder.channels == output->channels;
+    if (splice) {
+        AudioOutput* idle = next->output;
+        atomic_store(&idle->source, player);
+        player->output = idle;
+        next->output = output;
+        atomic_store(&output->source, next);
+
+        player->isPlaying = false;
+        player->finished = true;
+        player->handedOff = true;
+        player->next = NULL;
+        next->finished = false;
+        next->isPlaying = true;
+    }
+    pthread_mutex_unlock(&chainLock);
+    return splice ? next : NULL;
+}
+
+// Fills the next render buffer and queues it; false once the track has
+// nothing left. Short reads are padded with silence.
+static bool renderNextBuffer(AudioOutput* output) {
+    AudioPlayer* player = atomic_load(&output->source);
+    maybeStartCrossfade(player);
+    bool fadingOut = atomic_load(&player->fadingOut); // before fadeOutMs, see runCrossfade
+    int fadeOutMs = atomic_exchange(&player->fadeOutMs, 0);
+    if (fadeOutMs > 0) {
+        fadeBegin(&player->fade, -1, msToFrames(player, fadeOutMs));
+    }
+    if (fadingOut && player->fade.direction == 0) {
+        return false; // faded out completely, the rest is not heard
+    }
+
+    uint32_t wanted = RENDER_FRAMES * (uint32_t)output->channels;
+    int16_t* buffer = output->renderBuffers[output->renderIndex];
+
+    bool over = decodingOver(player); // read before the ring, see decodeLoop
+    uint32_t got = renderFrom(player, buffer, wanted);
+    AudioPlayer* ended = NULL;
+    bool busy = false;
+    if (got < wanted && over) {
+        AudioPlayer* next = spliceNext(output, player, &busy);
+        if (next) {
+            got += renderFrom(next, buffer + got, wanted - got);
+            ended = player;
+        }
+    }
+    if (busy) {
+        // Queue just what there is, the next callback tries the splice
+        // again; only a buffer with nothing at all gets a little silence
+        if (got == 0) {
+            got = SPLICE_RETRY_FRAMES * (uint32_t)output->channels;
+            memset(buffer, 0, got * sizeof(int16_t));
+        }
+        wanted = got;
+    } else if (got == 0 && over && !ended) {
+        return false;
+    }
+    if (got < wanted) {
+        memset(buffer + got, 0, (wanted - got) * sizeof(int16_t));
+    }
+
+    SLresult result = (*output->playerQueue)->Enqueue(
+        output->playerQueue, buffer, wanted * sizeof(int16_t));
+    if (ended) {
+        // The event thread points the visualizer at the new track. Last, the
+        // finished track may be released as soon as Java hears of it.
+        postPlayerEvent(atomic_load(&output->source), PLAYER_COMMAND_SPLICED, 0);
+        postPlayerEvent(ended, PLAYER_EVENT_END, 1);
+    }
+    if (result != SL_RESULT_SUCCESS) {
+        postPlayerEvent(atomic_load(&output->source), PLAYER_EVENT_ERROR, PLAYER_ERROR_OUTPUT);
+        return false;
+    }
+    output->renderIndex = (output->renderIndex + 1) % RENDER_BUFFERS;
+    atomic_fetch_add(&output->queued, 1);
+    return true;
+}
+
+// Queues the first buffers (when none are) and sets the player going
+static bool startRendering(AudioPlayer* player) {
+    AudioOutput* output = player->output;
+    if (atomic_load(&output->queued) == 0) {
+        for (int i = 0; i < RENDER_BUFFERS && renderNextBuffer(output); i++) {
+        }
+        if (atomic_load(&output->queued) == 0) {
+            return false;
+        }
+    }
+    SLresult result = (*output->playerPlay)->SetPlayState(
+        output->playerPlay, SL_PLAYSTATE_PLAYING);
+    if (result != SL_RESULT_SUCCESS) {
+        LOGE("Failed to start playback: %d", result);
+        return false;
+    }
+    player->isPlaying = true;
+    return true;
+}
+
+static void onTrackEnded(AudioPlayer* player) {
+    player->isPlaying = false;
+    player->finished = true;
+    // The event thread starts a next track that was not spliced, then
+    // reports the end
+    postPlayerEvent(player, PLAYER_COMMAND_HAND_OFF, 0);
+}
+
+void SLAPIENTRY bufferQueueCallback(
+    SLAndroidSimpleBufferQueueItf caller,
+    void* context
 ) {
     
     (void)caller;
-    AudioPlayer *player = context;
+    AudioOutput* output = context;
 
-    if (event & SL_PLAYEVENT_HEADATEND) {
-        player->isPlaying = false;
-        player->finished = true;
-        LOGI("Audio finished (callback)");
+    int stillQueued = atomic_fetch_sub(&output->queued, 1) - 1;
+    if (renderNextBuffer(output) || stillQueued > 0) {
+        return;
+    }
+    // Last buffer has played out
+    onTrackEnded(atomic_load(&output->source));
+}
+
+// Arranges for `next`, whose decoder is already filling its ring, to start
+// the moment `player` reaches its end
+void linkNextPlayer(AudioPlayer* player, AudioPlayer* next) {
+    if (!player || !next || !next->isPrepared) {
+        return;
     }
+    pthread_mutex_lock(&chainLock);
+    player->next = next;
+    player->handedOff = false;
+    atomic_store(&player->startRequested, false);
+    pthread_mutex_unlock(&chainLock);
+    LOGI("Next track primed");
+}
+
+void unlinkNextPlayer(AudioPlayer* player) {
+    if (!player) return;
+    pthread_mutex_lock(&chainLock);
+    player->next = NULL;
+    pthread_mutex_unlock(&chainLock);
+}
+
+bool hasHandedOff(AudioPlayer* player) {
+    if (!player) return false;
+    pthread_mutex_lock(&chainLock);
+    bool handedOff = player->handedOff;
+    pthread_mutex_unlock(&chainLock);
+    return handedOff;
+}
+
+// Copies the latest `count` (at most TAP_SAMPLES) samples of the audible
+// output, oldest first; returns how many, 0 when nothing is playing
+int readOutputSamples(int16_t* out, int count) {
+    if (count > TAP_SAMPLES) {
+        count = TAP_SAMPLES;
+    }
+    pthread_mutex_lock(&tapLock);
+    AudioPlayer* player = audiblePlayer;
+    if (!player) {
+        pthread_mutex_unlock(&tapLock);
+        memset(out, 0, (size_t)count * sizeof(int16_t));
+        return 0;
+    }
+    uint32_t head = atomic_load_explicit(&player->tapHead, memory_order_acquire);
+    uint32_t start = head - (uint32_t)count;
+    for (int i = 0; i < count; i++) {
+        out[i] = player->tap[(start + (uint32_t)i) & (TAP_SAMPLES - 1)];
+    }
+    pthread_mutex_unlock(&tapLock);
+    return count;
 }
 
 void playAudio(AudioPlayer* player) {
@@ -209,26 +868,27 @@ void playAudio(AudioPlayer* player) {
         return;
     }
 
+    if (player->finished) {
+        // Played to the end: start over
+        seekToPosition(player, 0);
+    }
     player->finished = false;
     
-    SLresult result = (*player->playerPlay)->SetPlayState(
-        player->playerPlay, SL_PLAYSTATE_PLAYING);
-    
-    if (result == SL_RESULT_SUCCESS) {
-        player->isPlaying = true;
+    if (startRendering(player)) {
+        setAudible(player);
         LOGI("Starting playback");
-    } else {
-        LOGE("Failed to start playback: %d", result);
     }
 }
 
 void pauseAudio(AudioPlayer* player) {
-    if (!player || !player->playerPlay) {
+    AudioOutput* output = player ? outputOf(player) : NULL;
+    if (!output || !output->playerPlay) {
         return;
     }
     
-    SLresult result = (*player->playerPlay)->SetPlayState(
-        player->playerPlay, SL_PLAYSTATE_PAUSED);
+    // Queued buffers stay queued and play on resume
+    SLresult result = (*output->playerPlay)->SetPlayState(
+        output->playerPlay, SL_PLAYSTATE_PAUSED);
     
     if (result == SL_RESULT_SUCCESS) {
         player->isPlaying = false;
@@ -237,97 +897,107 @@ void pauseAudio(AudioPlayer* player) {
 }
 
 void stopAudio(AudioPlayer* player) {
-    if (!player || !player->playerPlay) {
+    AudioOutput* output = player ? outputOf(player) : NULL;
+    if (!output || !output->playerPlay) {
         return;
     }
     
-    SLresult result = (*player->playerPlay)->SetPlayState(
-        player->playerPlay, SL_PLAYSTATE_STOPPED);
+    SLresult result = (*output->playerPlay)->SetPlayState(
+        output->playerPlay, SL_PLAYSTATE_STOPPED);
     
     if (result == SL_RESULT_SUCCESS) {
         player->isPlaying = false;
         player->finished = false;
+        (*output->playerQueue)->Clear(output->playerQueue);
+        atomic_store(&output->queued, 0);
         
         // Back to start
-        if (player->playerSeek) {
-            (*player->playerSeek)->SetPosition(
-                player->playerSeek, 0, SL_SEEKMODE_FAST);
-        }
+        seekToPosition(player, 0);
         LOGI("Stopped");
     }
 }
 
 void setLooping(AudioPlayer* player, bool loop) {
-    if (!player || !player->playerSeek) {
-        LOGI("Seek interface not available, cannot set looping");
+    if (!player) {
         return;
     }
     
-    SLresult result = (*player->playerSeek)->SetLoop(
-        player->playerSeek, 
-        loop ? SL_BOOLEAN_TRUE : SL_BOOLEAN_FALSE,
-        0, SL_TIME_UNKNOWN);
-    
-    if (result != SL_RESULT_SUCCESS) {
-        LOGE("Failed to set looping: %d", result);
-    } else {
-        LOGI("Looping set to: %s", loop ? "true" : "false");
-    }
+    // The decode thread restarts the track itself when it hits the end
+    atomic_store(&player->looping, loop);
+    sem_post(&player->wake);
+    LOGI("Looping set to: %s", loop ? "true" : "false");
 }
 
 SLmillisecond getCurrentPosition(AudioPlayer* player) {
-    if (!player || !player->playerPlay) {
-        LOGE("Player or playerPlay interface is NULL");
+    if (!player || !player->isPrepared) {
+        LOGE("Player is NULL or not prepared");
         return 0;
     }
-    SLmillisecond currentPos;
-    SLresult result = (*player->playerPlay)->GetPosition(player->playerPlay, &currentPos);
-    if (result != SL_RESULT_SUCCESS) {
-        LOGE("Failed to get current position: %d", result);
-        return 0;
+    // A seek the sink has not caught up with yet already counts
+    int seekMs = atomic_load(&player->seekRequestMs);
+    if (seekMs >= 0) {
+        return (SLmillisecond)seekMs;
     }
-    return currentPos;
+    if (atomic_load(&player->flushPending)) {
+        return player->flushBaseMs;
+    }
+    return renderedPosition(player);
 }
 
-SLmillisecond getDuration(AudioPlayer* player) {
-    if (!player || !player->playerPlay) {
-        LOGE("Player or playerPlay interface is NULL");
-        return 0;
+// The upper limit is PlayerController.MAX_CROSSFADE_MS, applied by the caller
+void setCrossfadeDuration(int ms) {
+    if (ms < 0) ms = 0;
+    atomic_store(&crossfadeMs, ms);
+    LOGI("Crossfade set to %d ms", ms);
+}
+
+// True while the player is fading out under the next track
+bool isFadingOut(AudioPlayer* player) {
+    return player && atomic_load(&player->fadingOut) && !player->finished;
+}
+
+// Arms a one-shot PLAYER_EVENT_MARKER for when playback reaches positionMs;
+// a negative position disarms it
+void setMarkerPosition(AudioPlayer* player, int positionMs) {
+    if (!player) {
+        return;
     }
-    SLmillisecond duration;
-    SLresult result = (*player->playerPlay)->GetDuration(player->playerPlay, &duration);
-    if (result != SL_RESULT_SUCCESS) {
-        LOGE("Failed to get duration: %d", result);
+    atomic_store(&player->markerMs, positionMs < 0 ? -1 : positionMs);
+}
+
+SLmillisecond getDuration(AudioPlayer* player) {
+    if (!player || !player->decoderOpen) {
+        LOGE("Player is NULL or has no decoder");
         return 0;
     }
-    return duration;
+    return (SLmillisecond)(player->decoder.durationUs / 1000);
 }
 
 void seekToPosition(AudioPlayer* player, SLmillisecond position) {
-    if (!player || !player->playerSeek) {
-        LOGE("Seek interface not available, cannot seek");
+    if (!player || !player->isPrepared) {
+        LOGE("Player not ready, cannot seek");
         return;
     }
-    SLresult result = (*player->playerSeek)->SetPosition(
-        player->playerSeek, position, SL_SEEKMODE_ACCURATE);
-    if (result != SL_RESULT_SUCCESS) {
-        LOGE("Failed to seek to position %lu: %d", (unsigned long)position, result);
-    } else {
-        LOGI("Seeked to position: %lu", (unsigned long)position);
-        player->finished = false; // Reset finished flag after seeking
-    }
+    // Done by the decode thread; the sink drops what was decoded before it
+    atomic_store(&player->seekRequestMs, (int)position);
+    sem_post(&player->wake);
+    player->finished = false; // Reset finished flag after seeking
+    LOGI("Seeking to position: %lu", (unsigned long)position);
 }
 
 bool isAudioPlaying(AudioPlayer* player) {
     if (!player) return false;
     
-    if (player->playerPlay) {
+    // The play state stays PLAYING after the queue runs dry at the end, so
+    // it can only rule playing out
+    AudioOutput* output = outputOf(player);
+    if (output && output->playerPlay) {
         SLuint32 state;
-        SLresult result = (*player->playerPlay)->GetPlayState(
-            player->playerPlay, &state);
+        SLresult result = (*output->playerPlay)->GetPlayState(
+            output->playerPlay, &state);
         
-        if (result == SL_RESULT_SUCCESS) {
-            player->isPlaying = (state == SL_PLAYSTATE_PLAYING);
+        if (result == SL_RESULT_SUCCESS && state != SL_PLAYSTATE_PLAYING) {
+            player->isPlaying = false;
         }
     }
     
@@ -346,30 +1016,50 @@ void destroyAudioPlayer(AudioPlayer* player) {
     if (!player) return;
     
     LOGI("Cleaning up audio player...");
-    
-    // Stop playback
-    if (player->playerPlay) {
-        (*player->playerPlay)->SetPlayState(
-            player->playerPlay, SL_PLAYSTATE_STOPPED);
+
+    // Waits for a command running on it; none finds it after this
+    pthread_mutex_lock(&registryLock);
+    for (AudioPlayer** link = &livePlayerList; *link; link = &(*link)->nextLive) {
+        if (*link == player) {
+            *link = player->nextLive;
+            break;
+        }
     }
-    
-    // Destroy player
-    if (player->playerObject) {
-        (*player->playerObject)->Destroy(player->playerObject);
-        player->playerObject = NULL;
+    pthread_mutex_unlock(&registryLock);
+
+    // No hand-off from a player that is going away
+    unlinkNextPlayer(player);
+
+    pthread_mutex_lock(&tapLock);
+    if (audiblePlayer == player) {
+        audiblePlayer = NULL;
     }
+    pthread_mutex_unlock(&tapLock);
     
-    // Destroy output mix
-    if (player->outputMixObject) {
-        (*player->outputMixObject)->Destroy(player->outputMixObject);
-        player->outputMixObject = NULL;
+    // Stop and destroy the output; no callback runs after this. Unlinked,
+    // the player can no longer be spliced, so its output stays put.
+    AudioOutput* output = outputOf(player);
+    if (output) {
+        destroyAudioOutput(output);
+        player->output = NULL;
     }
-    
-    // Destroy engine
-    if (player->engineObject) {
-        (*player->engineObject)->Destroy(player->engineObject);
-        player->engineObject = NULL;
+
+    // Stop decoding
+    if (player->decodeThreadStarted) {
+        atomic_store(&player->stopDecoding, true);
+        sem_post(&player->wake);
+        pthread_join(player->decodeThread, NULL);
     }
+    if (player->decoderOpen) {
+        pcmDecoderClose(&player->decoder);
+    }
+    pcmRingFree(&player->ring);
+    sem_destroy(&player->wake);
+    
+    // The engine and output mix are shared and stay alive for the next track
+    pthread_mutex_lock(&engineLock);
+    livePlayers--;
+    pthread_mutex_unlock(&engineLock);
     
     free(player);
     LOGI("Audio player destroyed");
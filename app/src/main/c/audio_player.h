@@ -3,30 +3,129 @@
 
 #include <SLES/OpenSLES.h>
 #include <SLES/OpenSLES_Android.h>
+#include <pthread.h>
+#include <semaphore.h>
+#include <stdatomic.h>
 #include <stdbool.h>
+#include "crossfade.h"
+#include "pcm_decoder.h"
+#include "pcm_ring.h"
 
-// AudioPlayer Structure
-typedef struct {
-    // OpenSL ES objects
-    SLObjectItf engineObject;
-    SLEngineItf engineEngine;
-    SLObjectItf outputMixObject;
+// Samples per channel in each buffer handed to the sink (~23 ms at 44.1 kHz)
+#define RENDER_FRAMES 1024
+#define RENDER_BUFFERS 2
+// Decoded PCM kept ahead of the sink, in samples (~0.75 s of 44.1 kHz stereo)
+#define RING_SAMPLES (1 << 16)
+// Mono history of the rendered output kept for the visualizer, in samples
+#define TAP_SAMPLES 4096
+
+// Play events delivered to Java
+#define PLAYER_EVENT_END 1      // arg: 1 if the next track took over
+#define PLAYER_EVENT_MARKER 2   // arg: marker position in ms
+#define PLAYER_EVENT_ERROR 3    // arg: one of PLAYER_ERROR_*
+#define PLAYER_EVENT_CROSSFADE 4 // arg: fade length in ms; next took over, this one fades out
+
+// Commands the audio callback leaves to the event thread, which may block in
+// OpenSL calls; carried out inside waitPlayerEvent, they never reach Java
+#define PLAYER_COMMAND_CROSSFADE 100 // arg: fade length in ms
+#define PLAYER_COMMAND_HAND_OFF 101
+#define PLAYER_COMMAND_SPLICED 102 // the player took over a running output
+
+#define PLAYER_ERROR_SETUP 1
+#define PLAYER_ERROR_DECODE 2
+#define PLAYER_ERROR_OUTPUT 3
+
+struct AudioPlayer;
+
+// An OpenSL ES player object fed through a buffer queue. Each track gets its
+// own, but a gapless splice hands a running one over to the next track.
+typedef struct AudioOutput {
     SLObjectItf playerObject;
-    
-    // Interfaces
     SLPlayItf playerPlay;
-    SLSeekItf playerSeek;
+    SLAndroidSimpleBufferQueueItf playerQueue;
     SLVolumeItf playerVolume;
+    int sampleRate;
+    int channels;
+
+    // Rendering, done by the sink callback (or before playback starts)
+    int16_t* renderBuffers[RENDER_BUFFERS];
+    int renderIndex;
+    atomic_int queued;
+
+    // Track whose PCM the callback renders
+    struct AudioPlayer* _Atomic source;
+} AudioOutput;
+
+// AudioPlayer Structure
+typedef struct AudioPlayer {
+    // Identifies the player in events; unlike its address, never reused
+    int64_t id;
+    struct AudioPlayer* nextLive; // registry of live players, see findPlayer
+
+    // OpenSL ES objects; engine and output mix are shared, owned by the engine singleton
+    SLEngineItf engineEngine;
+    SLObjectItf outputMixObject;
+
+    // Where the track is heard; swapped with the next track's on a splice,
+    // so read it through chainLock
+    AudioOutput* output;
+
+    // Decoding: one thread decodes into the ring, the sink callback drains it
+    PcmDecoder decoder;
+    bool decoderOpen;
+    PcmRing ring;
+    pthread_t decodeThread;
+    bool decodeThreadStarted;
+    sem_t wake;                // posted whenever the decode thread may have work
+    atomic_bool stopDecoding;
+    atomic_bool decodeEnded;
+    atomic_int seekRequestMs;  // -1 when none
+
+    // Seek hand-over from the decode thread to the callback
+    atomic_bool flushPending;
+    uint32_t flushTo;
+    SLmillisecond flushBaseMs;
+    // Loop restart: position goes back to 0 once the sink reads past loopAt
+    atomic_bool loopPending;
+    uint32_t loopAt;
+
+    // Position, advanced by the sink callback
+    atomic_uint framesRendered;
+    atomic_uint positionBaseMs;
+    atomic_int markerMs;       // -1 when none
+    Fade fade;
+    atomic_bool fadingOut;     // set for good once a fade-out starts
+    atomic_int fadeOutMs;      // fade-out for the callback to begin, 0 when none
+
+    // Mono copy of what was rendered, read by the visualizer
+    int16_t tap[TAP_SAMPLES];
+    atomic_uint tapHead;
     
     // State
     bool isPlaying;
     bool isPrepared;
     bool finished;
+    atomic_bool looping;
+
+    // Gapless: primed player spliced in right behind the last sample (or
+    // crossfaded in ahead of it, or started on its own output when the
+    // formats differ)
+    struct AudioPlayer* next;
+    bool handedOff;
+    atomic_bool startRequested; // a command to start next is on its way
 } AudioPlayer;
 
+typedef struct PlayerEvent {
+    int64_t playerId;
+    int type;
+    int arg;
+} PlayerEvent;
+
 // Function declarations
+bool acquireAudioEngine(SLEngineItf* engine, SLObjectItf* outputMix);
+void releaseAudioEngine(void);
 AudioPlayer* createAudioPlayer(const char* filePath);
-void setupUriAudioPlayer(AudioPlayer* player, const char* filePath);
+void setupPcmAudioPlayer(AudioPlayer* player, const char* filePath);
 void playAudio(AudioPlayer* player);
 void pauseAudio(AudioPlayer* player);
 void stopAudio(AudioPlayer* player);
@@ -36,9 +135,18 @@ SLmillisecond getDuration(AudioPlayer* player);
 void seekToPosition(AudioPlayer* player, SLmillisecond position);
 bool isAudioPlaying(AudioPlayer* player);
 bool isAudioFinished(AudioPlayer* player);
+void linkNextPlayer(AudioPlayer* player, AudioPlayer* next);
+void unlinkNextPlayer(AudioPlayer* player);
+bool hasHandedOff(AudioPlayer* player);
+int readOutputSamples(int16_t* out, int count);
+void setMarkerPosition(AudioPlayer* player, int positionMs);
+void setCrossfadeDuration(int ms);
+bool isFadingOut(AudioPlayer* player);
+void postPlayerEvent(AudioPlayer* player, int type, int arg);
+bool waitPlayerEvent(PlayerEvent* event);
 void destroyAudioPlayer(AudioPlayer* player);
 
 // Callback
-void SLAPIENTRY playbackCallback(SLPlayItf caller, void* context, SLuint32 event);
+void SLAPIENTRY bufferQueueCallback(SLAndroidSimpleBufferQueueItf caller, void* context);
 
 #endif // AUDIO_PLAYER_H
@@ -0,0 +1,63 @@
+#include "crossfade.h"
+#include <math.h>
+#include <pthread.h>
+
+// Runs on the audio callback thread: no clock reads, logging or locks in
+// fadeApply. Its cost is measured off-device by src/test/c/crossfade_bench.c.
+
+// sin(x) for x in [0, pi/2] as Q15 gains; a fade-out reads it backwards (cos)
+#define CURVE_POINTS 256
+static int16_t curve[CURVE_POINTS + 1];
+static pthread_once_t curveOnce = PTHREAD_ONCE_INIT;
+
+static void buildCurve(void) {
+    for (int i = 0; i <= CURVE_POINTS; i++) {
+        curve[i] = (int16_t)lrintf(32767.0f * sinf((float)M_PI_2 * (float)i / CURVE_POINTS));
+    }
+}
+
+void fadeBegin(Fade* fade, int direction, uint32_t frames) {
+    pthread_once(&curveOnce, buildCurve);
+    fade->direction = frames > 0 ? direction : 0;
+    fade->frames = frames;
+    fade->position = 0;
+}
+
+// Scales `frames` interleaved frames by the next stretch of the ramp. Frames
+// past its end get the final gain: full for a fade-in, silence for a
+// fade-out. Returns true, and goes idle, once the ramp is complete.
+bool fadeApply(Fade* fade, int16_t* pcm, uint32_t frames, int channels) {
+    if (fade->direction == 0) {
+        return false;
+    }
+
+    // Position on the curve in 16.16 fixed point, stepped once per frame so
+    // the loop has no division (ARMv7 may not have one in hardware)
+    const uint32_t end = (uint32_t)CURVE_POINTS << 16;
+    uint32_t step = (uint32_t)(((uint64_t)end) / fade->frames);
+    uint32_t at = (uint32_t)(((uint64_t)fade->position * end) / fade->frames);
+
+    for (uint32_t f = 0; f < frames; f++) {
+        uint32_t u = at >= end ? end : at;
+        if (fade->direction < 0) {
+            u = end - u;
+        }
+        uint32_t index = u >> 16;
+        int32_t gain = curve[index];
+        if (index < CURVE_POINTS) {
+            gain += ((curve[index + 1] - gain) * (int32_t)(u & 0xFFFF)) >> 16;
+        }
+        int16_t* frame = pcm + (size_t)f * (size_t)channels;
+        for (int c = 0; c < channels; c++) {
+            frame[c] = (int16_t)((frame[c] * gain) >> 15);
+        }
+        at += step;
+    }
+
+    fade->position += frames;
+    if (fade->position < fade->frames) {
+        return false;
+    }
+    fade->direction = 0;
+    return true;
+}
@@ -0,0 +1,19 @@
+#ifndef CROSSFADE_H
+#define CROSSFADE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+
+// Equal-power gain ramp applied to one player's PCM as it is rendered. The
+// fading-in and fading-out players each run one; the output mix sums them,
+// and sin/cos gains keep the summed power constant across the overlap.
+typedef struct Fade {
+    int direction;     // 1 fading in, -1 fading out, 0 idle
+    uint32_t frames;   // length of the ramp
+    uint32_t position; // frames of the ramp done
+} Fade;
+
+void fadeBegin(Fade* fade, int direction, uint32_t frames);
+bool fadeApply(Fade* fade, int16_t* pcm, uint32_t frames, int channels);
+
+#endif // CROSSFADE_H
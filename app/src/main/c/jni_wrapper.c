@@ -1,5 +1,6 @@
 #include <jni.h>
 #include <android/log.h>
+#include <pthread.h>
 #include "audio_player.h"
 
 #define LOG_TAG "MusicPlayerJNI"
@@ -7,6 +8,68 @@
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define PACKAGE(T) Java_com_music_player_player_##T
 
+static JavaVM* javaVm = NULL;
+static jclass controllerClass = NULL;
+static jmethodID onNativeEventMethod = NULL;
+
+// Hands native play events to PlayerController.onNativeEvent; sleeps while
+// nothing happens, so an idle player costs no wakeups. Also starts next
+// tracks for the audio callback, see waitPlayerEvent.
+static void* eventThreadMain(void* arg) {
+    (void)arg;
+
+    JNIEnv* env;
+    if ((*javaVm)->AttachCurrentThread(javaVm, &env, NULL) != JNI_OK) {
+        LOGE("Failed to attach event thread");
+        return NULL;
+    }
+
+    PlayerEvent event;
+    while (waitPlayerEvent(&event)) {
+        (*env)->CallStaticVoidMethod(env, controllerClass, onNativeEventMethod,
+            (jlong)event.playerId, (jint)event.type, (jint)event.arg);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionDescribe(env);
+            (*env)->ExceptionClear(env);
+        }
+    }
+
+    LOGE("Player event delivery stopped");
+    (*javaVm)->DetachCurrentThread(javaVm);
+    return NULL;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
+    (void)reserved;
+
+    JNIEnv* env;
+    if ((*vm)->GetEnv(vm, (void**)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    javaVm = vm;
+
+    jclass clazz = (*env)->FindClass(env, "com/music/player/player/PlayerController");
+    if (clazz == NULL) {
+        LOGE("PlayerController class not found");
+        return JNI_ERR;
+    }
+    controllerClass = (jclass)(*env)->NewGlobalRef(env, clazz);
+    (*env)->DeleteLocalRef(env, clazz);
+    onNativeEventMethod = (*env)->GetStaticMethodID(env, controllerClass, "onNativeEvent", "(JII)V");
+    if (onNativeEventMethod == NULL) {
+        LOGE("PlayerController.onNativeEvent not found");
+        return JNI_ERR;
+    }
+
+    pthread_t eventThread;
+    if (pthread_create(&eventThread, NULL, eventThreadMain, NULL) != 0) {
+        LOGE("Failed to start event thread");
+        return JNI_ERR;
+    }
+    pthread_detach(eventThread);
+    return JNI_VERSION_1_6;
+}
+
 // Create AudioPlayer
 JNIEXPORT jlong JNICALL PACKAGE(PlayerController_createPlayer) ( JNIEnv *env, jobject thiz, jstring filePath) {
     (void)thiz;
@@ -32,7 +95,16 @@ JNIEXPORT jlong JNICALL PACKAGE(PlayerController_createPlayer) ( JNIEnv *env, jo
     return (jlong)player;
 }
 
-// Setup player with URI
+// Id the player's events carry
+JNIEXPORT jlong JNICALL PACKAGE(PlayerController_getPlayerId) ( JNIEnv *env, jobject thiz, jlong playerPtr) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    return player != NULL ? (jlong)player->id : 0;
+}
+
+// Setup player: open the decoder and the buffer-queue sink
 JNIEXPORT void JNICALL PACKAGE(PlayerController_setupPlayer) ( JNIEnv *env, jobject thiz, jlong playerPtr, jstring filePath) {
     (void)thiz;
 
@@ -50,10 +122,14 @@ JNIEXPORT void JNICALL PACKAGE(PlayerController_setupPlayer) ( JNIEnv *env, jobj
 
     LOGI("Setting up player with file: %s", path);
 
-    setupUriAudioPlayer(player, path);
+    setupPcmAudioPlayer(player, path);
 
     (*env)->ReleaseStringUTFChars(env, filePath, path);
 
+    if (!player->isPrepared) {
+        postPlayerEvent(player, PLAYER_EVENT_ERROR, PLAYER_ERROR_SETUP);
+    }
+
     LOGI("Player setup completed");
 }
 
@@ -187,3 +263,98 @@ JNIEXPORT void JNICALL PACKAGE(PlayerController_destroyPlayer) ( JNIEnv *env, jo
     LOGI("Destroying player at address: %p", (void*)player);
     destroyAudioPlayer(player);
 }
+
+
+// Release the shared OpenSL ES engine (no-op while a player is alive)
+JNIEXPORT void JNICALL PACKAGE(PlayerController_releaseEngine) ( JNIEnv *env, jclass clazz) {
+    (void)env;
+    (void)clazz;
+
+    LOGI("Releasing audio engine");
+    releaseAudioEngine();
+}
+
+// Prime nextPtr and start it when playerPtr reaches its end
+JNIEXPORT void JNICALL PACKAGE(PlayerController_linkNext) ( JNIEnv *env, jobject thiz, jlong playerPtr, jlong nextPtr) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    AudioPlayer* next = (AudioPlayer*)nextPtr;
+    if (player == NULL || next == NULL) {
+        LOGE("Player pointer is NULL in linkNext");
+        return;
+    }
+    linkNextPlayer(player, next);
+}
+
+// Cancel a pending hand-off
+JNIEXPORT void JNICALL PACKAGE(PlayerController_unlinkNext) ( JNIEnv *env, jobject thiz, jlong playerPtr) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    if (player == NULL) {
+        return;
+    }
+    unlinkNextPlayer(player);
+}
+
+// Check if the next track has taken over
+JNIEXPORT jboolean JNICALL PACKAGE(PlayerController_hasHandedOff) ( JNIEnv *env, jobject thiz, jlong playerPtr) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    if (player == NULL) {
+        return JNI_FALSE;
+    }
+    return hasHandedOff(player) ? JNI_TRUE : JNI_FALSE;
+}
+
+// Arm a one-shot marker event at position (ms); negative disarms it
+JNIEXPORT void JNICALL PACKAGE(PlayerController_setMarker) ( JNIEnv *env, jobject thiz, jlong playerPtr, jint position) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    if (player == NULL) {
+        LOGE("Player pointer is NULL in setMarker");
+        return;
+    }
+    setMarkerPosition(player, position);
+}
+
+// Check if the player is fading out under the next track
+JNIEXPORT jboolean JNICALL PACKAGE(PlayerController_isFadingOut) ( JNIEnv *env, jobject thiz, jlong playerPtr) {
+    (void)env;
+    (void)thiz;
+
+    AudioPlayer* player = (AudioPlayer*)playerPtr;
+    if (player == NULL) {
+        return JNI_FALSE;
+    }
+    return isFadingOut(player) ? JNI_TRUE : JNI_FALSE;
+}
+
+// Set the crossfade between consecutive tracks, 0 to switch gaplessly
+JNIEXPORT void JNICALL PACKAGE(PlayerController_setCrossfade) ( JNIEnv *env, jclass clazz, jint ms) {
+    (void)env;
+    (void)clazz;
+
+    setCrossfadeDuration(ms);
+}
+
+// Copy the latest mono output samples into `out`; returns how many are real
+JNIEXPORT jint JNICALL PACKAGE(PlayerController_readTap) ( JNIEnv *env, jclass clazz, jshortArray out) {
+    (void)clazz;
+
+    jsize length = (*env)->GetArrayLength(env, out);
+    if (length > TAP_SAMPLES) {
+        length = TAP_SAMPLES;
+    }
+    int16_t samples[TAP_SAMPLES];
+    int count = readOutputSamples(samples, length);
+    (*env)->SetShortArrayRegion(env, out, 0, length, (const jshort*)samples);
+    return count;
+}
@@ -0,0 +1,429 @@
+#include "pcm_decoder.h"
+#include <fcntl.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOG_TAG "PcmDecoder"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#else
+// For non-Android
+#define LOGI(...) printf("[INFO] " __VA_ARGS__); printf("\n")
+#define LOGE(...) printf("[ERROR] " __VA_ARGS__); printf("\n")
+#endif
+
+// How long a read waits for the codec when it has nothing at all to hand out
+#define DEQUEUE_TIMEOUT_US 10000
+// Input buffers queued per read, enough to keep the codec busy
+#define INPUT_BURST 4
+// Dequeue attempts while waiting for the first output buffer in open
+#define PRIME_ATTEMPTS 300
+
+// Larger encoder delay or padding values are taken as bogus and ignored
+// (LAME declares at most 4095 frames, AAC encoders about 2112)
+#define MAX_TRIM_FRAMES 8192
+
+// Value of MediaFormat.KEY_PCM_ENCODING for AudioFormat.ENCODING_PCM_FLOAT
+#define PCM_ENCODING_FLOAT 4
+
+// Speaker positions of the default channel orders (WAVE order, which is
+// also what MediaCodec produces) and how each folds into left and right
+enum { SP_L, SP_R, SP_C, SP_LFE, SP_SL, SP_SR, SP_SC };
+static const float SPEAKER_GAINS[][2] = {
+    [SP_L] = { 1.0f, 0.0f },
+    [SP_R] = { 0.0f, 1.0f },
+    [SP_C] = { (float)M_SQRT1_2, (float)M_SQRT1_2 },
+    [SP_LFE] = { 0.0f, 0.0f },
+    [SP_SL] = { (float)M_SQRT1_2, 0.0f },
+    [SP_SR] = { 0.0f, (float)M_SQRT1_2 },
+    [SP_SC] = { 0.5f, 0.5f },
+};
+static const int LAYOUTS[PCM_MAX_SOURCE_CHANNELS + 1][PCM_MAX_SOURCE_CHANNELS] = {
+    [3] = { SP_L, SP_R, SP_C },
+    [4] = { SP_L, SP_R, SP_SL, SP_SR },                           // quad
+    [5] = { SP_L, SP_R, SP_C, SP_SL, SP_SR },
+    [6] = { SP_L, SP_R, SP_C, SP_LFE, SP_SL, SP_SR },             // 5.1
+    [7] = { SP_L, SP_R, SP_C, SP_LFE, SP_SL, SP_SR, SP_SC },      // 6.1
+    [8] = { SP_L, SP_R, SP_C, SP_LFE, SP_SL, SP_SR, SP_SL, SP_SR }, // 7.1
+};
+
+// Records the source channel count and the stereo downmix for it
+static bool setSourceChannels(PcmDecoder* decoder, int count) {
+    if (count > PCM_MAX_SOURCE_CHANNELS) {
+        LOGE("%d channels not supported, at most %d are downmixed to stereo",
+            count, PCM_MAX_SOURCE_CHANNELS);
+        return false;
+    }
+    decoder->sourceChannels = count;
+    decoder->channels = count >= 2 ? 2 : 1;
+    for (int c = 0; c < count && count > 2; c++) {
+        decoder->downmix[c][0] = SPEAKER_GAINS[LAYOUTS[count][c]][0];
+        decoder->downmix[c][1] = SPEAKER_GAINS[LAYOUTS[count][c]][1];
+    }
+    return true;
+}
+
+static bool pumpInput(PcmDecoder* decoder) {
+    if (decoder->inputEnded) {
+        return false;
+    }
+    ssize_t index = AMediaCodec_dequeueInputBuffer(decoder->codec, 0);
+    if (index < 0) {
+        return false;
+    }
+    size_t capacity = 0;
+    uint8_t* buffer = AMediaCodec_getInputBuffer(decoder->codec, (size_t)index, &capacity);
+    ssize_t size = buffer
+        ? AMediaExtractor_readSampleData(decoder->extractor, buffer, capacity)
+        : -1;
+    if (size < 0) {
+        AMediaCodec_queueInputBuffer(decoder->codec, (size_t)index, 0, 0, 0,
+            AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM);
+        decoder->inputEnded = true;
+        return false;
+    }
+    AMediaCodec_queueInputBuffer(decoder->codec, (size_t)index, 0, (size_t)size,
+        (uint64_t)AMediaExtractor_getSampleTime(decoder->extractor), 0);
+    AMediaExtractor_advance(decoder->extractor);
+    return true;
+}
+
+static void readOutputFormat(PcmDecoder* decoder) {
+    AMediaFormat* format = AMediaCodec_getOutputFormat(decoder->codec);
+    if (!format) {
+        return;
+    }
+    int32_t value;
+    if (AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, &value) && value > 0) {
+        decoder->sampleRate = value;
+    }
+    if (AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, &value) && value > 0
+        && !setSourceChannels(decoder, value)) {
+        decoder->failed = true;
+    }
+    if (AMediaFormat_getInt32(format, "pcm-encoding", &value)) {
+        decoder->floatOutput = value == PCM_ENCODING_FLOAT;
+    }
+    AMediaFormat_delete(format);
+    LOGI("Output format: %d Hz, %d channels%s", decoder->sampleRate,
+        decoder->sourceChannels, decoder->floatOutput ? ", float" : "");
+}
+
+// Takes the next decoded buffer from the codec, if there is one yet
+static bool pullOutput(PcmDecoder* decoder, int64_t timeoutUs) {
+    AMediaCodecBufferInfo info;
+    ssize_t index = AMediaCodec_dequeueOutputBuffer(decoder->codec, &info, timeoutUs);
+    if (index == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED) {
+        readOutputFormat(decoder);
+        return false;
+    }
+    if (index < AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED) {
+        LOGE("Codec error: %zd", index);
+        decoder->failed = true;
+        return false;
+    }
+    if (index < 0) {
+        return false;
+    }
+    if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM) {
+        decoder->outputEnded = true;
+    }
+    size_t size = 0;
+    uint8_t* data = AMediaCodec_getOutputBuffer(decoder->codec, (size_t)index, &size);
+    if (!data || info.size <= 0) {
+        AMediaCodec_releaseOutputBuffer(decoder->codec, (size_t)index, false);
+        return false;
+    }
+    decoder->outIndex = index;
+    decoder->outData = data + info.offset;
+    decoder->outRemaining = (size_t)info.size;
+    return true;
+}
+
+static void releasePending(PcmDecoder* decoder) {
+    if (decoder->outIndex >= 0) {
+        AMediaCodec_releaseOutputBuffer(decoder->codec, (size_t)decoder->outIndex, false);
+        decoder->outIndex = -1;
+        decoder->outData = NULL;
+        decoder->outRemaining = 0;
+    }
+}
+
+static inline float readSample(const uint8_t* at, bool isFloat) {
+    if (isFloat) {
+        float v;
+        memcpy(&v, at, sizeof(v));
+        return v;
+    }
+    int16_t v;
+    memcpy(&v, at, sizeof(v));
+    return v / 32768.0f;
+}
+
+static inline int16_t toPcm16(float v) {
+    v = v > 1.0f ? 1.0f : (v < -1.0f ? -1.0f : v);
+    return (int16_t)(v * 32767.0f);
+}
+
+// Copies whole frames from the pending buffer, downmixing to stereo when the
+// source has more than two channels
+static int convertFrames(PcmDecoder* decoder, int16_t* out, int maxFrames) {
+    size_t sampleBytes = decoder->floatOutput ? sizeof(float) : sizeof(int16_t);
+    size_t frameBytes = sampleBytes * (size_t)decoder->sourceChannels;
+    int frames = (int)(decoder->outRemaining / frameBytes);
+    if (frames > maxFrames) {
+        frames = maxFrames;
+    }
+
+    const uint8_t* src = decoder->outData;
+    if (!decoder->floatOutput && decoder->sourceChannels == decoder->channels) {
+        memcpy(out, src, (size_t)frames * frameBytes);
+    } else if (decoder->sourceChannels == decoder->channels) {
+        for (int i = 0; i < frames * decoder->channels; i++) {
+            out[i] = toPcm16(readSample(src + (size_t)i * sampleBytes, true));
+        }
+    } else {
+        for (int f = 0; f < frames; f++) {
+            const uint8_t* frame = src + (size_t)f * frameBytes;
+            float left = 0.0f;
+            float right = 0.0f;
+            for (int c = 0; c < decoder->sourceChannels; c++) {
+                float v = readSample(frame + (size_t)c * sampleBytes, decoder->floatOutput);
+                left += v * decoder->downmix[c][0];
+                right += v * decoder->downmix[c][1];
+            }
+            out[f * 2] = toPcm16(left);
+            out[f * 2 + 1] = toPcm16(right);
+        }
+    }
+
+    decoder->outData += (size_t)frames * frameBytes;
+    decoder->outRemaining -= (size_t)frames * frameBytes;
+    if (decoder->outRemaining < frameBytes) {
+        releasePending(decoder); // a trailing partial frame is dropped
+    }
+    return frames * decoder->channels;
+}
+
+// Reads one of the gapless keys, 0 when absent or out of range
+static int trimFramesOf(AMediaFormat* format, const char* key) {
+    int32_t value;
+    if (!AMediaFormat_getInt32(format, key, &value) || value < 0 || value > MAX_TRIM_FRAMES) {
+        return 0;
+    }
+    return value;
+}
+
+// Drops what is left of the encoder delay from the start of `out` and runs
+// the rest through a delay line of paddingFrames frames, so the padding is
+// still held back when the stream ends; returns the frames left in `out`
+static int trimFrames(PcmDecoder* decoder, int16_t* out, int frames) {
+    size_t frameBytes = (size_t)decoder->channels * sizeof(int16_t);
+    if (decoder->skipFrames > 0) {
+        int skip = frames < decoder->skipFrames ? frames : decoder->skipFrames;
+        decoder->skipFrames -= skip;
+        frames -= skip;
+        memmove(out, out + skip * decoder->channels, (size_t)frames * frameBytes);
+    }
+    int capacity = decoder->paddingFrames;
+    if (capacity == 0) {
+        return frames;
+    }
+
+    // A frame is handed out once `capacity` newer ones have followed it; it
+    // lands at or before the slot just read, so nothing unread is overwritten
+    int emitted = 0;
+    for (int f = 0; f < frames; f++) {
+        int16_t frame[2];
+        memcpy(frame, out + f * decoder->channels, frameBytes);
+        if (decoder->heldFrames == capacity) {
+            int16_t* oldest = decoder->held + decoder->heldStart * 2;
+            memcpy(out + emitted * decoder->channels, oldest, frameBytes);
+            emitted++;
+            memcpy(oldest, frame, frameBytes);
+            decoder->heldStart = (decoder->heldStart + 1) % capacity;
+        } else {
+            int slot = (decoder->heldStart + decoder->heldFrames) % capacity;
+            memcpy(decoder->held + slot * 2, frame, frameBytes);
+            decoder->heldFrames++;
+        }
+    }
+    return emitted;
+}
+
+bool pcmDecoderOpen(PcmDecoder* decoder, const char* filePath) {
+    memset(decoder, 0, sizeof(PcmDecoder));
+    decoder->fd = -1;
+    decoder->outIndex = -1;
+
+    decoder->fd = open(filePath, O_RDONLY);
+    struct stat st;
+    if (decoder->fd < 0 || fstat(decoder->fd, &st) != 0) {
+        LOGE("Cannot open %s", filePath);
+        pcmDecoderClose(decoder);
+        return false;
+    }
+
+    decoder->extractor = AMediaExtractor_new();
+    if (!decoder->extractor
+        || AMediaExtractor_setDataSourceFd(decoder->extractor, decoder->fd, 0, st.st_size) != AMEDIA_OK) {
+        LOGE("Extractor failed for %s", filePath);
+        pcmDecoderClose(decoder);
+        return false;
+    }
+
+    // Find audio track
+    size_t trackCount = AMediaExtractor_getTrackCount(decoder->extractor);
+    for (size_t i = 0; i < trackCount && !decoder->codec; i++) {
+        AMediaFormat* format = AMediaExtractor_getTrackFormat(decoder->extractor, i);
+        const char* mime = NULL;
+        if (format && AMediaFormat_getString(format, AMEDIAFORMAT_KEY_MIME, &mime)
+            && mime && strncmp(mime, "audio/", 6) == 0) {
+            AMediaExtractor_selectTrack(decoder->extractor, i);
+
+            int32_t value;
+            if (AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, &value)) {
+                decoder->sampleRate = value;
+            }
+            if (AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, &value)
+                && !setSourceChannels(decoder, value)) {
+                AMediaFormat_delete(format);
+                pcmDecoderClose(decoder);
+                return false;
+            }
+            AMediaFormat_getInt64(format, AMEDIAFORMAT_KEY_DURATION, &decoder->durationUs);
+            // MediaFormat.KEY_ENCODER_DELAY / KEY_ENCODER_PADDING, from the
+            // LAME/Xing header or iTunSMPB
+            decoder->delayFrames = trimFramesOf(format, "encoder-delay");
+            decoder->paddingFrames = trimFramesOf(format, "encoder-padding");
+            decoder->skipFrames = decoder->delayFrames;
+
+            decoder->codec = AMediaCodec_createDecoderByType(mime);
+            if (!decoder->codec
+                || AMediaCodec_configure(decoder->codec, format, NULL, NULL, 0) != AMEDIA_OK
+                || AMediaCodec_start(decoder->codec) != AMEDIA_OK) {
+                LOGE("Codec failed for %s", mime);
+                if (decoder->codec) {
+                    AMediaCodec_delete(decoder->codec);
+                    decoder->codec = NULL;
+                }
+                AMediaFormat_delete(format);
+                pcmDecoderClose(decoder);
+                return false;
+            }
+            LOGI("Codec started: %s", mime);
+        }
+        if (format) {
+            AMediaFormat_delete(format);
+        }
+    }
+
+    if (!decoder->codec) {
+        LOGE("No audio track found in %s", filePath);
+        pcmDecoderClose(decoder);
+        return false;
+    }
+    if (decoder->paddingFrames > 0) {
+        decoder->held = malloc((size_t)decoder->paddingFrames * 2 * sizeof(int16_t));
+        if (!decoder->held) {
+            decoder->paddingFrames = 0;
+        }
+    }
+    if (decoder->delayFrames > 0 || decoder->paddingFrames > 0) {
+        LOGI("Trimming %d frames of encoder delay, %d of padding",
+            decoder->delayFrames, decoder->paddingFrames);
+    }
+
+    // Decode up to the first buffer so the real output format is known before
+    // the sink is built (HE-AAC, for one, doubles the container's sample rate)
+    for (int attempt = 0; attempt < PRIME_ATTEMPTS && decoder->outIndex < 0; attempt++) {
+        for (int i = 0; i < INPUT_BURST && pumpInput(decoder); i++) {
+        }
+        pullOutput(decoder, DEQUEUE_TIMEOUT_US);
+        if (decoder->outputEnded || decoder->failed) {
+            break;
+        }
+    }
+
+    if (decoder->failed || decoder->sampleRate <= 0 || decoder->sourceChannels <= 0) {
+        LOGE("Could not determine PCM format of %s", filePath);
+        pcmDecoderClose(decoder);
+        return false;
+    }
+    return true;
+}
+
+// Returns the number of samples written (whole frames), 0 when the codec has
+// nothing ready yet, PCM_DECODER_END after the last one or PCM_DECODER_ERROR.
+// Encoder delay and padding are never handed out.
+int pcmDecoderRead(PcmDecoder* decoder, int16_t* out, int maxSamples) {
+    int written = 0;
+    while (written < maxSamples) {
+        int frames = (maxSamples - written) / decoder->channels;
+        if (frames == 0) {
+            break;
+        }
+        if (decoder->outIndex < 0) {
+            if (decoder->outputEnded) {
+                break;
+            }
+            for (int i = 0; i < INPUT_BURST && pumpInput(decoder); i++) {
+            }
+            // Only wait when there is nothing to return yet
+            if (!pullOutput(decoder, written > 0 ? 0 : DEQUEUE_TIMEOUT_US)) {
+                break;
+            }
+        }
+        written += convertFrames(decoder, out + written, frames);
+    }
+
+    if (decoder->failed) {
+        return PCM_DECODER_ERROR;
+    }
+    if (written == 0 && decoder->outputEnded && decoder->outIndex < 0) {
+        return PCM_DECODER_END; // what the delay line still holds is padding
+    }
+    return trimFrames(decoder, out, written / decoder->channels) * decoder->channels;
+}
+
+bool pcmDecoderSeek(PcmDecoder* decoder, int64_t positionUs) {
+    releasePending(decoder);
+    if (AMediaExtractor_seekTo(decoder->extractor, positionUs,
+            AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC) != AMEDIA_OK) {
+        LOGE("Failed to seek to %lld us", (long long)positionUs);
+        return false;
+    }
+    AMediaCodec_flush(decoder->codec);
+    decoder->inputEnded = false;
+    decoder->outputEnded = false;
+    // Back at the start (a loop too) the priming plays again: drop it again
+    decoder->skipFrames = positionUs == 0 ? decoder->delayFrames : 0;
+    decoder->heldStart = 0;
+    decoder->heldFrames = 0;
+    return true;
+}
+
+void pcmDecoderClose(PcmDecoder* decoder) {
+    if (decoder->codec) {
+        releasePending(decoder);
+        AMediaCodec_stop(decoder->codec);
+        AMediaCodec_delete(decoder->codec);
+        decoder->codec = NULL;
+    }
+    if (decoder->extractor) {
+        AMediaExtractor_delete(decoder->extractor);
+        decoder->extractor = NULL;
+    }
+    if (decoder->fd >= 0) {
+        close(decoder->fd);
+        decoder->fd = -1;
+    }
+    free(decoder->held);
+    decoder->held = NULL;
+}
@@ -0,0 +1,57 @@
+#ifndef PCM_DECODER_H
+#define PCM_DECODER_H
+
+#include <media/NdkMediaCodec.h>
+#include <media/NdkMediaExtractor.h>
+#include <media/NdkMediaFormat.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <sys/types.h>
+
+#define PCM_DECODER_END (-1)
+#define PCM_DECODER_ERROR (-2)
+
+// Widest source layout taken (7.1); anything above two channels is downmixed
+#define PCM_MAX_SOURCE_CHANNELS 8
+
+// Decodes the audio track of a file to interleaved 16-bit PCM with at most
+// two channels, using the platform MediaCodec. Multichannel sources are
+// folded down to stereo.
+typedef struct PcmDecoder {
+    AMediaExtractor* extractor;
+    AMediaCodec* codec;
+    int fd;
+
+    // Output format, known once pcmDecoderOpen returns
+    int sampleRate;
+    int channels;       // channels handed out, 1 or 2
+    int sourceChannels; // channels the codec produces
+    float downmix[PCM_MAX_SOURCE_CHANNELS][2]; // gain of each source channel into L, R
+    bool floatOutput;
+    int64_t durationUs;
+
+    // Gapless trimming, in frames: the encoder's priming silence dropped at the
+    // start and its padding at the end, as the container declares them
+    int delayFrames;
+    int paddingFrames;
+    int skipFrames;  // priming still to drop
+    int16_t* held;   // delay line of the last paddingFrames frames (stride 2)
+    int heldStart;
+    int heldFrames;
+
+    bool inputEnded;
+    bool outputEnded;
+    bool failed;
+
+    // Output buffer being handed out
+    ssize_t outIndex;
+    const uint8_t* outData;
+    size_t outRemaining; // bytes
+} PcmDecoder;
+
+bool pcmDecoderOpen(PcmDecoder* decoder, const char* filePath);
+int pcmDecoderRead(PcmDecoder* decoder, int16_t* out, int maxSamples);
+bool pcmDecoderSeek(PcmDecoder* decoder, int64_t positionUs);
+void pcmDecoderClose(PcmDecoder* decoder);
+
+#endif // PCM_DECODER_H
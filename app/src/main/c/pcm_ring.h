@@ -0,0 +1,90 @@
+#ifndef PCM_RING_H
+#define PCM_RING_H
+
+#include <stdatomic.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+// Single-producer single-consumer ring of 16-bit samples. The decoder thread
+// writes, the audio callback reads; neither ever blocks or takes a lock.
+// head and tail only grow (wrapping as unsigned), capacity is a power of two.
+typedef struct PcmRing {
+    int16_t* data;
+    uint32_t capacity;
+    uint32_t mask;
+    atomic_uint head; // total samples written, owned by the producer
+    atomic_uint tail; // total samples read, owned by the consumer
+} PcmRing;
+
+static inline bool pcmRingInit(PcmRing* ring, uint32_t capacity) {
+    ring->data = (int16_t*)calloc(capacity, sizeof(int16_t));
+    if (!ring->data) {
+        return false;
+    }
+    ring->capacity = capacity;
+    ring->mask = capacity - 1;
+    atomic_init(&ring->head, 0);
+    atomic_init(&ring->tail, 0);
+    return true;
+}
+
+static inline void pcmRingFree(PcmRing* ring) {
+    free(ring->data);
+    ring->data = NULL;
+}
+
+static inline uint32_t pcmRingAvailable(PcmRing* ring) {
+    return atomic_load_explicit(&ring->head, memory_order_acquire)
+        - atomic_load_explicit(&ring->tail, memory_order_relaxed);
+}
+
+static inline uint32_t pcmRingSpace(PcmRing* ring) {
+    return ring->capacity
+        - (atomic_load_explicit(&ring->head, memory_order_relaxed)
+           - atomic_load_explicit(&ring->tail, memory_order_acquire));
+}
+
+// Producer: copies up to count samples in, returns how many fit
+static inline uint32_t pcmRingWrite(PcmRing* ring, const int16_t* src, uint32_t count) {
+    uint32_t head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    uint32_t space = pcmRingSpace(ring);
+    if (count > space) {
+        count = space;
+    }
+    uint32_t at = head & ring->mask;
+    uint32_t first = ring->capacity - at;
+    if (first > count) {
+        first = count;
+    }
+    memcpy(ring->data + at, src, first * sizeof(int16_t));
+    memcpy(ring->data, src + first, (count - first) * sizeof(int16_t));
+    atomic_store_explicit(&ring->head, head + count, memory_order_release);
+    return count;
+}
+
+// Consumer: copies up to count samples out, returns how many there were
+static inline uint32_t pcmRingRead(PcmRing* ring, int16_t* dst, uint32_t count) {
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    uint32_t available = pcmRingAvailable(ring);
+    if (count > available) {
+        count = available;
+    }
+    uint32_t at = tail & ring->mask;
+    uint32_t first = ring->capacity - at;
+    if (first > count) {
+        first = count;
+    }
+    memcpy(dst, ring->data + at, first * sizeof(int16_t));
+    memcpy(dst + first, ring->data, (count - first) * sizeof(int16_t));
+    atomic_store_explicit(&ring->tail, tail + count, memory_order_release);
+    return count;
+}
+
+// Consumer: drops everything written before the producer's head was `head`
+static inline void pcmRingSkipTo(PcmRing* ring, uint32_t head) {
+    atomic_store_explicit(&ring->tail, head, memory_order_release);
+}
+
+#endif // PCM_RING_H
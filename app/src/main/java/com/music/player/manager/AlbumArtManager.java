@@ -1,31 +1,92 @@
 package com.music.player.manager;
 
 import com.music.player.model.*;
+import com.music.player.scanner.MusicMetadataCache;
 import com.music.player.utils.*;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AlbumArtManager {
 
     private static final String TAG = "AlbumArtManager";
     private static final String ART_DIR = "albumart";
-    private static final int MAX_ART_PX = 256; // Max dimension when saving, saves disk space
+
+    /**
+     * Pre-sized copies kept for every stored picture, so list rows never decode
+     * the full-screen image just to show a small icon.
+     */
+    public enum Variant {
+        FULL(512, ""),
+        // List rows draw art at 56dp: 224px on xxxhdpi, the densest bucket
+        THUMB(224, "_t");
+
+        final int maxPx;
+        final String suffix;
+
+        Variant(int maxPx, String suffix) {
+            this.maxPx = maxPx;
+            this.suffix = suffix;
+        }
+
+        public int getMaxPx() {
+            return maxPx;
+        }
+    }
+
+    private static final String[] KNOWN_EXTENSIONS = { ".webp", ".jpg", ".png" };
 
     private static AlbumArtManager instance;
+    private final Context context;
     private final File artDir;
     private final FileLogger fileLogger;
+    private final Bitmap.CompressFormat format;
+    private final String extension;
+    private final int quality;
+
+    // Stored art is keyed by a digest of the embedded picture, so every track of
+    // an album shares one file. path -> digest, persisted in the metadata cache.
+    private final ConcurrentHashMap<String, String> artKeys = new ConcurrentHashMap<>();
+    private volatile boolean indexLoaded = false;
 
     private AlbumArtManager(Context context) {
+        this.context = context;
         artDir = new File(context.getFilesDir(), ART_DIR);
         if (!artDir.exists()) {
             artDir.mkdirs();
         }
         fileLogger = FileLogger.getInstance(context);
+
+        ConfigManager config = new ConfigManager(context);
+        quality = Math.max(0, Math.min(100, config.getArtQuality()));
+        String name = config.getArtFormat() != null ? config.getArtFormat().toUpperCase() : "";
+        if (name.equals("JPEG") || name.equals("JPG")) {
+            format = Bitmap.CompressFormat.JPEG;
+            extension = ".jpg";
+        } else if (name.equals("PNG")) {
+            format = Bitmap.CompressFormat.PNG;
+            extension = ".png";
+        } else {
+            format = webpFormat();
+            extension = ".webp";
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        // API 30 deprecated WEBP in favour of explicit lossy/lossless formats
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
     }
 
     public static synchronized AlbumArtManager getInstance(Context context) {
@@ -35,40 +96,173 @@ public class AlbumArtManager {
         return instance;
     }
 
+    private void ensureIndex() {
+        if (indexLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (indexLoaded) {
+                return;
+            }
+            Map<String, String> index = MusicMetadataCache.getInstance(context).loadArtIndex();
+            for (Map.Entry<String, String> e : index.entrySet()) {
+                artKeys.putIfAbsent(e.getKey(), e.getValue());
+            }
+            indexLoaded = true;
+        }
+    }
+
+    /**
+     * Returns the digest of the art stored for {@code musicPath}, or null if the
+     * track has none. May read the path index from the database on first use.
+     */
+    public String getArtKey(String musicPath) {
+        ensureIndex();
+        return artKeys.get(musicPath);
+    }
+
+    /**
+     * Key to use for BitmapCache: the art digest when already known in memory,
+     * else the path itself. Never touches the database, safe on the UI thread.
+     */
+    public String cacheKeyFor(String musicPath) {
+        String key = artKeys.get(musicPath);
+        return key != null ? key : musicPath;
+    }
+
+    /**
+     * Same as {@link #cacheKeyFor(String)} for a given variant. Returns null when
+     * the track is known to have no art, loading the index if needed.
+     */
+    public String getCacheKey(String musicPath, Variant variant) {
+        String key = getArtKey(musicPath);
+        return key != null ? key + variant.suffix : null;
+    }
+
+    public String cacheKeyFor(String musicPath, Variant variant) {
+        return cacheKeyFor(musicPath) + variant.suffix;
+    }
+
     public File getAlbumArtFile(String musicPath) {
-        String hash = Integer.toHexString(musicPath.hashCode());
-        return new File(artDir, hash + ".png");
+        return getAlbumArtFile(musicPath, Variant.FULL);
+    }
+
+    public File getAlbumArtFile(String musicPath, Variant variant) {
+        String key = getArtKey(musicPath);
+        return key != null ? findStored(key, variant) : null;
+    }
+
+    /**
+     * Finds a stored variant, looking at the configured format first. Art
+     * written before a format change stays readable. A missing thumbnail falls
+     * back to the full-size picture.
+     */
+    private File findStored(String key, Variant variant) {
+        File f = new File(artDir, key + variant.suffix + extension);
+        if (f.exists()) {
+            return f;
+        }
+        for (String ext : KNOWN_EXTENSIONS) {
+            if (!ext.equals(extension)) {
+                f = new File(artDir, key + variant.suffix + ext);
+                if (f.exists()) {
+                    return f;
+                }
+            }
+        }
+        return variant != Variant.FULL ? findStored(key, Variant.FULL) : null;
     }
 
     public boolean hasAlbumArt(String musicPath) {
-        return getAlbumArtFile(musicPath).exists();
+        return getAlbumArtFile(musicPath) != null;
     }
 
-    public boolean saveAlbumArt(String musicPath, byte[] artBytes) {
+    /**
+     * Stores the embedded picture of {@code musicPath} in every variant and
+     * returns its key. When another track already stored the same picture only
+     * the index is updated, nothing is decoded or written.
+     */
+    public String saveAlbumArt(String musicPath, byte[] artBytes) {
         if (artBytes == null || artBytes.length == 0)
-            return false;
+            return null;
+
+        String key = digest(artBytes);
+        if (key == null)
+            return null;
+
+        if (new File(artDir, key + Variant.FULL.suffix + extension).exists()
+                && new File(artDir, key + Variant.THUMB.suffix + extension).exists()) {
+            artKeys.put(musicPath, key);
+            return key;
+        }
 
-        File out = getAlbumArtFile(musicPath);
-        FileOutputStream fos = null;
         try {
             // Decode with inJustDecodeBounds first to compute sample size
             BitmapFactory.Options opts = new BitmapFactory.Options();
             opts.inJustDecodeBounds = true;
             BitmapFactory.decodeByteArray(artBytes, 0, artBytes.length, opts);
 
+            int fullPx = Variant.FULL.maxPx;
             opts.inJustDecodeBounds = false;
-            opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight, MAX_ART_PX, MAX_ART_PX);
+            opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight, fullPx, fullPx);
 
-            Bitmap bitmap = BitmapFactory.decodeByteArray(artBytes, 0, artBytes.length, opts);
-            if (bitmap == null)
-                return false;
+            Bitmap decoded = BitmapFactory.decodeByteArray(artBytes, 0, artBytes.length, opts);
+            if (decoded == null)
+                return null;
 
-            fos = new FileOutputStream(out);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 90, fos);
-            bitmap.recycle();
-            return true;
+            // Each smaller variant is scaled from the previous one, not from the source
+            Bitmap current = decoded;
+            for (Variant variant : Variant.values()) {
+                Bitmap scaled = scaleToFit(current, variant.maxPx);
+                if (scaled != current && current != decoded) {
+                    current.recycle();
+                }
+                current = scaled;
+                if (!writeVariant(current, new File(artDir, key + variant.suffix + extension))) {
+                    return null;
+                }
+            }
+            if (current != decoded) {
+                current.recycle();
+            }
+            // The full-size scratch decode is never displayed: free it now
+            // rather than let it crowd display-sized bitmaps out of the pool
+            decoded.recycle();
+
+            artKeys.put(musicPath, key);
+            return key;
         } catch (Exception e) {
             fileLogger.e(TAG, "saveAlbumArt error for " + musicPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Bitmap scaleToFit(Bitmap bitmap, int maxPx) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        if (w <= maxPx && h <= maxPx) {
+            return bitmap;
+        }
+        float scale = Math.min((float) maxPx / w, (float) maxPx / h);
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(w * scale)), Math.max(1, Math.round(h * scale)), true);
+    }
+
+    private boolean writeVariant(Bitmap bitmap, File out) {
+        if (out.exists()) {
+            return true;
+        }
+        // Workers may save the same cover concurrently: write privately, then rename
+        File tmp = new File(artDir, out.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            bitmap.compress(format, quality, fos);
+            fos.close();
+            fos = null;
+            return tmp.renameTo(out) || out.exists();
+        } catch (Exception e) {
+            fileLogger.e(TAG, "writeVariant error for " + out.getName() + ": " + e.getMessage());
             return false;
         } finally {
             if (fos != null) {
@@ -77,38 +271,55 @@ public class AlbumArtManager {
                 } catch (Exception ignored) {
                 }
             }
+            if (tmp.exists())
+                tmp.delete();
         }
     }
 
-    public Bitmap loadAlbumArt(String musicPath) {
-        File artFile = getAlbumArtFile(musicPath);
-        if (!artFile.exists())
-            return null;
+    private static String digest(byte[] bytes) {
         try {
-            return BitmapFactory.decodeFile(artFile.getAbsolutePath());
-        } catch (Exception e) {
-            fileLogger.e(TAG, "loadAlbumArt error for " + musicPath + ": " + e.getMessage());
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
             return null;
         }
     }
 
+    /**
+     * Forgets the art of a removed track. The file itself may be shared with
+     * other tracks and is only deleted by the next removeStaleArt.
+     */
     public void deleteAlbumArt(String musicPath) {
-        File f = getAlbumArtFile(musicPath);
-        if (f.exists())
-            f.delete();
+        artKeys.remove(musicPath);
     }
 
-    public void removeStaleArt(java.util.List<String> currentPaths) {
-        java.util.Set<String> validHashes = new java.util.HashSet<>();
+    public void removeStaleArt(java.util.Collection<String> currentPaths) {
+        ensureIndex();
+        java.util.Set<String> validKeys = new java.util.HashSet<>();
         for (String p : currentPaths) {
-            validHashes.add(Integer.toHexString(p.hashCode()) + ".png");
+            String key = artKeys.get(p);
+            if (key != null) {
+                validKeys.add(key);
+            }
         }
         File[] files = artDir.listFiles();
         if (files == null)
             return;
         int removed = 0;
         for (File f : files) {
-            if (!validHashes.contains(f.getName())) {
+            // <digest><variant suffix>.<ext>
+            String name = f.getName();
+            int dot = name.indexOf('.');
+            String base = dot >= 0 ? name.substring(0, dot) : name;
+            if (base.endsWith(Variant.THUMB.suffix)) {
+                base = base.substring(0, base.length() - Variant.THUMB.suffix.length());
+            }
+            if (!validKeys.contains(base)) {
                 f.delete();
                 removed++;
             }
@@ -0,0 +1,94 @@
+package com.music.player.manager;
+
+import com.music.player.utils.*;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Warms BitmapCache with art that is about to be shown (rows just below the
+ * fold, the next track) on one low-priority thread shared by all instances.
+ * Each call replaces what the same prefetcher still had queued, and the
+ * amount of art warmed per call is bounded by a memory budget so prefetching
+ * never pushes on-screen bitmaps out of the cache.
+ */
+public class ArtPrefetcher {
+
+    private static final String TAG = "ArtPrefetcher";
+
+    private static ExecutorService executor;
+
+    private final AlbumArtManager artManager;
+    private final BitmapCache bitmapCache;
+    private final FileLogger fileLogger;
+    private final long budgetBytes;
+
+    // Bumped by every prefetch call, queued work of older calls is skipped
+    private volatile int generation = 0;
+
+    public ArtPrefetcher(Context context) {
+        this.artManager = AlbumArtManager.getInstance(context);
+        this.bitmapCache = BitmapCache.getInstance(context);
+        this.fileLogger = FileLogger.getInstance(context);
+        // A quarter of the memory cache (which is 1/8 of the heap)
+        this.budgetBytes = Runtime.getRuntime().maxMemory() / 32;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, TAG);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Loads the {@code variant} art of {@code paths}, in order, at {@code reqPx}.
+     * Paths whose art is already in memory cost nothing; the rest are taken
+     * until the budget is used up. Safe to call on the UI thread.
+     */
+    public void prefetch(List<String> paths, AlbumArtManager.Variant variant, int reqPx) {
+        final int gen = ++generation;
+        long costPerBitmap = (long) reqPx * reqPx * 4;
+        long spent = 0;
+        for (String path : paths) {
+            if (path == null || bitmapCache.getBitmapFromMemCache(artManager.cacheKeyFor(path, variant), reqPx) != null) {
+                continue;
+            }
+            spent += costPerBitmap;
+            if (spent > budgetBytes) {
+                break;
+            }
+            executor().execute(() -> load(gen, path, variant, reqPx));
+        }
+    }
+
+    /** Drops everything this prefetcher still has queued. */
+    public void cancel() {
+        generation++;
+    }
+
+    private void load(int gen, String path, AlbumArtManager.Variant variant, int reqPx) {
+        if (gen != generation) {
+            return;
+        }
+        try {
+            String key = artManager.getCacheKey(path, variant);
+            if (key != null) {
+                bitmapCache.loadBitmap(key, reqPx, artManager.getAlbumArtFile(path, variant));
+            }
+        } catch (Exception e) {
+            fileLogger.e(TAG, "prefetch error for " + path + ": " + e.getMessage());
+        }
+    }
+}
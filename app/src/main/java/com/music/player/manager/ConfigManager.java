@@ -1,6 +1,7 @@
 package com.music.player.manager;
 
 import com.music.player.model.*;
+import com.music.player.player.*;
 import com.music.player.utils.*;
 
 import android.content.Context;
@@ -28,6 +29,11 @@ public class ConfigManager {
     private static final String KEY_VIS_MAX_BAR_LEN = "vis_max_bar_len";
     private static final String KEY_VIS_DECAY_SPEED = "vis_decay_speed";
     private static final String KEY_VIS_BAR_WIDTH = "vis_bar_width";
+    private static final String KEY_ART_FORMAT = "art_format";
+    private static final String KEY_ART_QUALITY = "art_quality";
+    private static final String KEY_CROSSFADE_SECONDS = "crossfade_seconds";
+
+    public static final int MAX_CROSSFADE_SECONDS = PlayerController.MAX_CROSSFADE_MS / 1000;
 
     private String musicDir;
     private boolean autoScan;
@@ -39,6 +45,9 @@ public class ConfigManager {
     private float visMaxBarLen;
     private float visDecaySpeed;
     private float visBarWidth;
+    private String artFormat;
+    private int artQuality;
+    private int crossfadeSeconds;
 
     private FileLogger fileLogger;
     private Context context;
@@ -90,6 +99,9 @@ public class ConfigManager {
                 visMaxBarLen = (float) config.optDouble(KEY_VIS_MAX_BAR_LEN, 0.60f);
                 visDecaySpeed = (float) config.optDouble(KEY_VIS_DECAY_SPEED, 0.15f);
                 visBarWidth = (float) config.optDouble(KEY_VIS_BAR_WIDTH, 0.45f);
+                artFormat = config.optString(KEY_ART_FORMAT, "WEBP");
+                artQuality = config.optInt(KEY_ART_QUALITY, 80);
+                setCrossfadeSeconds(config.optInt(KEY_CROSSFADE_SECONDS, 0));
 
                 fileLogger.i(TAG, "Config loaded.");
                 CrashHandler.install(context);
@@ -119,6 +131,9 @@ public class ConfigManager {
             config.put(KEY_VIS_MAX_BAR_LEN, visMaxBarLen);
             config.put(KEY_VIS_DECAY_SPEED, visDecaySpeed);
             config.put(KEY_VIS_BAR_WIDTH, visBarWidth);
+            config.put(KEY_ART_FORMAT, artFormat);
+            config.put(KEY_ART_QUALITY, artQuality);
+            config.put(KEY_CROSSFADE_SECONDS, crossfadeSeconds);
             configArray.put(config);
 
             FileWriter writer = new FileWriter(configFile);
@@ -146,6 +161,9 @@ public class ConfigManager {
         visMaxBarLen = 0.60f;
         visDecaySpeed = 0.15f;
         visBarWidth = 0.45f;
+        artFormat = "WEBP";
+        artQuality = 80;
+        crossfadeSeconds = 0;
     }
 
     // Getters and Setters
@@ -178,4 +196,17 @@ public class ConfigManager {
 
     public float getVisBarWidth() { return visBarWidth; }
     public void setVisBarWidth(float val) { this.visBarWidth = val; }
+
+    // Stored album art: "WEBP", "JPEG" or "PNG", quality 0-100 (ignored by PNG)
+    public String getArtFormat() { return artFormat; }
+    public void setArtFormat(String format) { this.artFormat = format; }
+
+    public int getArtQuality() { return artQuality; }
+    public void setArtQuality(int quality) { this.artQuality = quality; }
+
+    // Overlap between consecutive tracks, 0 (gapless) to MAX_CROSSFADE_SECONDS
+    public int getCrossfadeSeconds() { return crossfadeSeconds; }
+    public void setCrossfadeSeconds(int seconds) {
+        this.crossfadeSeconds = Math.max(0, Math.min(seconds, MAX_CROSSFADE_SECONDS));
+    }
 }
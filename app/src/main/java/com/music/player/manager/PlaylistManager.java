@@ -3,9 +3,8 @@ package com.music.player.manager;
 import com.music.player.model.*;
 import com.music.player.utils.*;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 public class PlaylistManager {
 
@@ -15,15 +14,18 @@ public class PlaylistManager {
         ONE
     }
 
-    private List<MusicFile> playlist = new ArrayList<>();
-    private List<MusicFile> originalPlaylist = new ArrayList<>();
+    // In play order and in library order. Handles, not TrackStore ids: holding
+    // them keeps their rows from being reused
+    private MusicFile[] playlist = new MusicFile[0];
+    private MusicFile[] originalPlaylist = new MusicFile[0];
+    private final Random random = new Random();
     private int currentIndex = -1;
     private boolean isShuffleEnabled = false;
     private RepeatMode repeatMode = RepeatMode.OFF;
 
     public void setPlaylist(List<MusicFile> files) {
-        this.originalPlaylist = new ArrayList<>(files);
-        this.playlist = new ArrayList<>(files);
+        this.originalPlaylist = files.toArray(new MusicFile[0]);
+        this.playlist = originalPlaylist.clone();
         this.currentIndex = -1; // Reset index when a new playlist is set
 
         if (isShuffleEnabled) {
@@ -32,8 +34,8 @@ public class PlaylistManager {
     }
 
     public MusicFile getCurrentMusic() {
-        if (currentIndex >= 0 && currentIndex < playlist.size()) {
-            return playlist.get(currentIndex);
+        if (currentIndex >= 0 && currentIndex < playlist.length) {
+            return playlist[currentIndex];
         }
         return null;
     }
@@ -43,7 +45,7 @@ public class PlaylistManager {
     }
 
     public MusicFile getNextMusic() {
-        if (playlist.isEmpty()) {
+        if (playlist.length == 0) {
             return null;
         }
 
@@ -54,7 +56,7 @@ public class PlaylistManager {
 
         nextIndex++;
 
-        if (nextIndex >= playlist.size()) {
+        if (nextIndex >= playlist.length) {
             if (repeatMode == RepeatMode.ALL) {
                 nextIndex = 0;
             } else {
@@ -63,19 +65,52 @@ public class PlaylistManager {
         }
 
         currentIndex = nextIndex;
-        return playlist.get(currentIndex);
+        return playlist[currentIndex];
+    }
+
+    /** Track {@link #getNextMusic()} would return, without moving to it. */
+    public MusicFile peekNextMusic() {
+        if (playlist.length == 0) {
+            return null;
+        }
+        if (repeatMode == RepeatMode.ONE) {
+            return getCurrentMusic();
+        }
+        int nextIndex = currentIndex + 1;
+        if (nextIndex >= playlist.length) {
+            if (repeatMode != RepeatMode.ALL) {
+                return null;
+            }
+            nextIndex = 0;
+        }
+        return playlist[nextIndex];
+    }
+
+    /** Track {@link #getPreviousMusic()} would return, without moving to it. */
+    public MusicFile peekPreviousMusic() {
+        if (playlist.length == 0) {
+            return null;
+        }
+        int prevIndex = currentIndex - 1;
+        if (prevIndex < 0) {
+            if (repeatMode != RepeatMode.ALL) {
+                return null;
+            }
+            prevIndex = playlist.length - 1;
+        }
+        return playlist[prevIndex];
     }
 
     public MusicFile getMusicAt(int index) {
-        if (index >= 0 && index < playlist.size()) {
+        if (index >= 0 && index < playlist.length) {
             currentIndex = index;
-            return playlist.get(index);
+            return playlist[index];
         }
         return null;
     }
 
     public MusicFile getPreviousMusic() {
-        if (playlist.isEmpty()) {
+        if (playlist.length == 0) {
             return null;
         }
 
@@ -83,14 +118,14 @@ public class PlaylistManager {
 
         if (prevIndex < 0) {
             if (repeatMode == RepeatMode.ALL) {
-                prevIndex = playlist.size() - 1;
+                prevIndex = playlist.length - 1;
             } else {
                 return null; // Start of playlist
             }
         }
 
         currentIndex = prevIndex;
-        return playlist.get(currentIndex);
+        return playlist[currentIndex];
     }
 
     public void toggleShuffle() {
@@ -104,22 +139,43 @@ public class PlaylistManager {
 
     private void shufflePlaylist() {
         MusicFile currentMusic = getCurrentMusic();
-        Collections.shuffle(playlist);
+        for (int i = playlist.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            MusicFile tmp = playlist[i];
+            playlist[i] = playlist[j];
+            playlist[j] = tmp;
+        }
         if (currentMusic != null) {
-            currentIndex = playlist.indexOf(currentMusic);
+            currentIndex = indexOf(currentMusic);
         }
     }
 
     private void restoreOriginalPlaylist() {
         MusicFile currentMusic = getCurrentMusic();
-        playlist = new ArrayList<>(originalPlaylist);
+        playlist = originalPlaylist.clone();
         if (currentMusic != null) {
-            currentIndex = playlist.indexOf(currentMusic);
+            currentIndex = indexOf(currentMusic);
         }
     }
 
     public void setCurrentMusic(MusicFile musicFile) {
-        currentIndex = playlist.indexOf(musicFile);
+        currentIndex = indexOf(musicFile);
+    }
+
+    private int indexOf(MusicFile musicFile) {
+        int id = musicFile.getId();
+        for (int i = 0; i < playlist.length; i++) {
+            if (playlist[i].getId() == id) {
+                return i;
+            }
+        }
+        // Not this exact version of the track: match it by path
+        for (int i = 0; i < playlist.length; i++) {
+            if (playlist[i].equals(musicFile)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public boolean isShuffleEnabled() {
@@ -0,0 +1,365 @@
+package com.music.player.manager;
+
+import com.music.player.model.*;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable search snapshot of the library. Title, artist, album and file
+ * name are normalized once (lower case, accents stripped) together with a bitmask of
+ * the characters each field contains, so most non-matching tracks are
+ * rejected with one AND before any string is walked.
+ */
+public class SearchIndex {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    // Word separators, as the database's full-text tokenizer sees them
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Relevance weights: a title hit outranks the same hit in artist or album
+    private static final int TITLE_WEIGHT = 3;
+    private static final int ARTIST_WEIGHT = 2;
+    private static final int ALBUM_WEIGHT = 1;
+    private static final int NAME_WEIGHT = 1;
+
+    private static final int MATCH_SCORE = 1;
+    private static final int CONSECUTIVE_BONUS = 4;
+    private static final int WORD_START_BONUS = 6;
+    private static final int FIELD_START_BONUS = 8;
+
+    // Cancellation is polled once per this many tracks
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    /** Lets a running search notice it has been superseded. */
+    public interface CancelSignal {
+        boolean isCancelled();
+    }
+
+    private final MusicFile[] tracks;
+    private final String[] titles;
+    private final String[] artists;
+    private final String[] albums;
+    private final String[] names;
+    private final long[] titleMasks;
+    private final long[] artistMasks;
+    private final long[] albumMasks;
+    private final long[] nameMasks;
+    private final Map<String, Integer> positions;
+
+    /** Builds the index; takes a while on large libraries, keep it off the UI thread. */
+    public SearchIndex(List<MusicFile> files) {
+        this(files, null);
+    }
+
+    /**
+     * Builds the index of {@code files}, taking the normalized fields of tracks
+     * {@code previous} already holds (same TrackStore row) from it, so rebuilding
+     * after a few tracks were added only normalizes those.
+     */
+    public SearchIndex(List<MusicFile> files, SearchIndex previous) {
+        int n = files.size();
+        tracks = files.toArray(new MusicFile[n]);
+        titles = new String[n];
+        artists = new String[n];
+        albums = new String[n];
+        names = new String[n];
+        titleMasks = new long[n];
+        artistMasks = new long[n];
+        albumMasks = new long[n];
+        nameMasks = new long[n];
+        positions = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String path = tracks[i].getPath();
+            positions.put(path, i);
+            Integer p = previous != null ? previous.positions.get(path) : null;
+            if (p != null && previous.tracks[p].getId() == tracks[i].getId()) {
+                titles[i] = previous.titles[p];
+                artists[i] = previous.artists[p];
+                albums[i] = previous.albums[p];
+                names[i] = previous.names[p];
+                titleMasks[i] = previous.titleMasks[p];
+                artistMasks[i] = previous.artistMasks[p];
+                albumMasks[i] = previous.albumMasks[p];
+                nameMasks[i] = previous.nameMasks[p];
+                continue;
+            }
+            titles[i] = normalize(tracks[i].getTitle());
+            artists[i] = normalize(tracks[i].getArtist());
+            albums[i] = normalize(tracks[i].getAlbum());
+            names[i] = normalize(MusicFile.fileStem(tracks[i].getPath()));
+            titleMasks[i] = charMask(titles[i]);
+            artistMasks[i] = charMask(artists[i]);
+            albumMasks[i] = charMask(albums[i]);
+            nameMasks[i] = charMask(names[i]);
+        }
+    }
+
+    public int size() {
+        return tracks.length;
+    }
+
+    public MusicFile get(int i) {
+        return tracks[i];
+    }
+
+    /** Indices of the given paths, skipping those not in this snapshot, in library order. */
+    public int[] indicesOf(Collection<String> paths) {
+        int[] out = new int[paths.size()];
+        int found = 0;
+        for (String path : paths) {
+            Integer i = positions.get(path);
+            if (i != null) {
+                out[found++] = i;
+            }
+        }
+        int[] result = new int[found];
+        System.arraycopy(out, 0, result, 0, found);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        String lower = s.toLowerCase().trim();
+        for (int i = 0; i < lower.length(); i++) {
+            if (lower.charAt(i) > 0x7F) {
+                return MARKS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+            }
+        }
+        return lower; // plain ASCII, nothing to decompose
+    }
+
+    private static long charMask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); i++) {
+            mask |= charBit(s.charAt(i));
+        }
+        return mask;
+    }
+
+    private static long charBit(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return 1L << (c - 'a');
+        }
+        if (c >= '0' && c <= '9') {
+            return 1L << (26 + c - '0');
+        }
+        return 1L << (36 + c % 28);
+    }
+
+    /**
+     * Words of a normalized query: "pink  floyd" -> ["pink", "floyd"], "ac/dc" ->
+     * ["ac", "dc"]. A query of separators only is its own single word.
+     */
+    static String[] words(String query) {
+        List<String> words = new ArrayList<>();
+        for (String word : SEPARATORS.split(query)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        if (words.isEmpty() && !query.isEmpty()) {
+            words.add(query);
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the indices of tracks where every word of {@code query} (already
+     * normalized) is a subsequence of some field, not necessarily the same one:
+     * "floyd time" finds "Time" by "Pink Floyd". When {@code candidates} is not
+     * null only those indices are looked at: a query that extends the previous
+     * one can only narrow its results. Returns null if {@code cancel} fired meanwhile.
+     */
+    public int[] search(String query, int[] candidates, CancelSignal cancel) {
+        String[] words = words(query);
+        long[] masks = new long[words.length];
+        for (int w = 0; w < words.length; w++) {
+            masks[w] = charMask(words[w]);
+        }
+        int count = candidates != null ? candidates.length : tracks.length;
+        int[] out = new int[count];
+        int found = 0;
+        for (int c = 0; c < count; c++) {
+            if (c % CANCEL_CHECK_INTERVAL == 0 && cancel.isCancelled()) {
+                return null;
+            }
+            int i = candidates != null ? candidates[c] : c;
+            if (matchesAll(i, words, masks)) {
+                out[found++] = i;
+            }
+        }
+        int[] result = new int[found];
+        System.arraycopy(out, 0, result, 0, found);
+        return result;
+    }
+
+    private boolean matchesAll(int i, String[] words, long[] masks) {
+        for (int w = 0; w < words.length; w++) {
+            if (!matches(i, words[w], masks[w])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int i, String query, long queryMask) {
+        return ((titleMasks[i] & queryMask) == queryMask && isSubsequence(titles[i], query))
+                || ((artistMasks[i] & queryMask) == queryMask && isSubsequence(artists[i], query))
+                || ((albumMasks[i] & queryMask) == queryMask && isSubsequence(albums[i], query))
+                || ((nameMasks[i] & queryMask) == queryMask && isSubsequence(names[i], query));
+    }
+
+    /**
+     * Returns up to {@code limit} of {@code matches} (indices from {@link #search}),
+     * best first. Only the best {@code limit} are kept while scoring, in a bounded
+     * min-heap, so the cost stays O(n log limit) however many tracks match.
+     * Equal scores keep library order. Candidates with a query word no field
+     * matches (score 0) are dropped. Returns null if {@code cancel} fired meanwhile.
+     */
+    public int[] rank(String query, int[] matches, int limit, CancelSignal cancel) {
+        if (limit <= 0 || matches.length == 0) {
+            return new int[0];
+        }
+        String[] words = words(query);
+        // score in the high half, inverted index in the low half: bigger is better
+        PriorityQueue<Long> heap = new PriorityQueue<>(Math.min(limit, matches.length) + 1);
+        for (int m = 0; m < matches.length; m++) {
+            if (m % CANCEL_CHECK_INTERVAL == 0 && cancel.isCancelled()) {
+                return null;
+            }
+            int i = matches[m];
+            int score = score(i, query, words);
+            if (score == 0) {
+                continue;
+            }
+            long key = ((long) score << 32) | (Integer.MAX_VALUE - i);
+            if (heap.size() < limit) {
+                heap.add(key);
+            } else if (key > heap.peek()) {
+                heap.poll();
+                heap.add(key);
+            }
+        }
+        int[] ranked = new int[heap.size()];
+        for (int r = ranked.length - 1; r >= 0; r--) {
+            ranked[r] = Integer.MAX_VALUE - (int) (heap.poll() & 0xFFFFFFFFL);
+        }
+        return ranked;
+    }
+
+    /**
+     * Sum of each word's best field score, 0 if any word matches nowhere. With
+     * several words the whole query scores on top, so words found together in
+     * one field outrank the same words spread over several.
+     */
+    private int score(int i, String query, String[] words) {
+        int total = 0;
+        for (String word : words) {
+            int s = bestFieldScore(i, word);
+            if (s == 0) {
+                return 0;
+            }
+            total += s;
+        }
+        return words.length > 1 ? total + bestFieldScore(i, query) : total;
+    }
+
+    private int bestFieldScore(int i, String query) {
+        return Math.max(fieldScore(titles[i], query) * TITLE_WEIGHT,
+                Math.max(fieldScore(artists[i], query) * ARTIST_WEIGHT,
+                        Math.max(fieldScore(albums[i], query) * ALBUM_WEIGHT,
+                                fieldScore(names[i], query) * NAME_WEIGHT)));
+    }
+
+    /**
+     * Scores {@code query} against one field: every matched character counts,
+     * runs of adjacent characters and matches at word starts count extra. A
+     * contiguous occurrence is preferred over the leftmost scattered match.
+     */
+    static int fieldScore(String text, String query) {
+        if (query.length() == 0 || query.length() > text.length()) {
+            return 0;
+        }
+        int at = text.indexOf(query);
+        if (at >= 0) {
+            int score = query.length() * (MATCH_SCORE + CONSECUTIVE_BONUS);
+            if (at == 0) {
+                score += FIELD_START_BONUS;
+            } else if (isWordStart(text, at)) {
+                score += WORD_START_BONUS;
+            }
+            return score;
+        }
+
+        int score = 0;
+        int queryIdx = 0;
+        int prev = -2;
+        for (int t = 0; t < text.length() && queryIdx < query.length(); t++) {
+            if (text.charAt(t) != query.charAt(queryIdx)) {
+                continue;
+            }
+            score += MATCH_SCORE;
+            if (t == prev + 1) {
+                score += CONSECUTIVE_BONUS;
+            }
+            if (t == 0) {
+                score += FIELD_START_BONUS;
+            } else if (isWordStart(text, t)) {
+                score += WORD_START_BONUS;
+            }
+            prev = t;
+            queryIdx++;
+        }
+        return queryIdx == query.length() ? score : 0;
+    }
+
+    /** Sorted union of two ascending index arrays. */
+    public static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int n = 0, i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (n == 0 || out[n - 1] != next) {
+                out[n++] = next;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static boolean isWordStart(String text, int i) {
+        return i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1));
+    }
+
+    private static boolean isSubsequence(String text, String query) {
+        if (query.length() == 0) {
+            return true;
+        }
+        if (query.length() > text.length()) {
+            return false;
+        }
+        int textIdx = 0, queryIdx = 0;
+        while (textIdx < text.length() && queryIdx < query.length()) {
+            if (text.charAt(textIdx) == query.charAt(queryIdx)) {
+                queryIdx++;
+            }
+            textIdx++;
+        }
+        return queryIdx == query.length();
+    }
+}
@@ -3,34 +3,39 @@ package com.music.player.model;
 import com.music.player.utils.Constant;
 import com.music.player.utils.*;
 
+/**
+ * Handle to one row of the {@link TrackStore}. Holds only the row id, the
+ * metadata itself is stored once in the store's columns. The row stays valid
+ * for as long as a handle to it is reachable: keep handles, not ids.
+ */
 public class MusicFile {
-    private String name;
-    private String path;
-    private long size;
-    private String title;
-    private String artist;
-    private String album;
-    private long duration;
+    private final int id;
 
     public MusicFile(String name, String path, long size, String title, String artist, String album, long duration) {
-        this.name = name;
-        this.path = path;
-        this.size = size;
-        this.title = title;
-        this.artist = artist;
-        this.album = album;
-        this.duration = duration;
+        // name is always the last path segment, it is derived instead of stored
+        this.id = TrackStore.getInstance().intern(this, path, size, title, artist, album, duration);
+    }
+
+    /** Row id in the TrackStore. Equal ids always mean equal metadata. */
+    public int getId() {
+        return id;
+    }
+
+    /** Same for every version of this file, unlike {@link #getId()}. */
+    public int getTrackId() {
+        return TrackStore.getInstance().getTrackId(id);
     }
 
     public String getPath() {
-        return path;
+        return TrackStore.getInstance().getPath(id);
     }
 
     public long getSize() {
-        return size;
+        return TrackStore.getInstance().getSize(id);
     }
 
     public String getSizeFormatted() {
+        long size = getSize();
         if (size < Constant.ONE_KB) {
             return size + " B";
         } else if (size < Constant.ONE_MB) {
@@ -41,22 +46,33 @@ public class MusicFile {
     }
 
     public String getTitle() {
-        return title;
+        return TrackStore.getInstance().getTitle(id);
     }
 
     public String getArtist() {
-        return artist;
+        return TrackStore.getInstance().getArtist(id);
     }
 
     public String getAlbum() {
-        return album;
+        return TrackStore.getInstance().getAlbum(id);
     }
 
     public long getDuration() {
-        return duration;
+        return TrackStore.getInstance().getDuration(id);
+    }
+
+    /** File name of {@code path} without directories or extension: "/a/b/Song.mp3" -> "Song". */
+    public static String fileStem(String path) {
+        if (path == null) {
+            return Constant.EMPTY_STRING;
+        }
+        int start = path.lastIndexOf('/') + 1;
+        int dot = path.lastIndexOf('.');
+        return dot > start ? path.substring(start, dot) : path.substring(start);
     }
 
     public String getDurationFormatted() {
+        long duration = getDuration();
         long minutes = (duration / 1000) / 60;
         long seconds = (duration / 1000) % 60;
         return String.format("%02d:%02d", minutes, seconds);
@@ -71,16 +87,26 @@ public class MusicFile {
             return false;
         }
         MusicFile that = (MusicFile) o;
-        return path != null ? path.equals(that.path) : that.path == null;
+        if (id == that.id) {
+            return true;
+        }
+        // Another version of the same file (re-tagged) is still the same track
+        String path = getPath();
+        return path != null ? path.equals(that.getPath()) : that.getPath() == null;
     }
 
     @Override
     public int hashCode() {
+        String path = getPath();
         return path != null ? path.hashCode() : 0;
     }
 
     @Override
     public String toString() {
+        String artist = getArtist();
+        String title = getTitle();
+        String path = getPath();
+        String name = path != null ? path.substring(path.lastIndexOf('/') + 1) : Constant.EMPTY_STRING;
         return (artist != null && !artist.isEmpty() ? artist + " - " : Constant.EMPTY_STRING) +
                 (title != null && !title.isEmpty() ? title : name);
     }
@@ -0,0 +1,254 @@
+package com.music.player.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide columnar store of track metadata. Every track is a row id;
+ * sizes and durations live in primitive arrays and artist/album names are
+ * interned, so an album's name is held once however many tracks it has.
+ * Rows never change: re-tagging a file adds a new row for its path, which
+ * lets a MusicFile handle act as an immutable snapshot. A row is reused once
+ * every handle to it has been garbage collected, so re-tagged and deleted
+ * files do not stay in the store.
+ */
+public final class TrackStore {
+
+    private static final TrackStore INSTANCE = new TrackStore();
+
+    private int count = 0; // rows ever used, live or free
+    private String[] paths = new String[256];
+    private String[] titles = new String[256];
+    private int[] artists = new int[256];
+    private int[] albums = new int[256];
+    private long[] sizes = new long[256];
+    private long[] durations = new long[256];
+    // Id shared by every row of the same path: one id per file across re-tags
+    private int[] trackIds = new int[256];
+    private int nextTrackId = 0;
+
+    // path -> newest live row of that path
+    private final Map<String, Integer> idByPath = new HashMap<>();
+    private final StringPool artistPool = new StringPool();
+    private final StringPool albumPool = new StringPool();
+
+    // Live MusicFile handles per row; a row whose count drops to 0 is freed
+    private int[] handleCounts = new int[256];
+    private int[] freeRows = new int[16];
+    private int freeCount = 0;
+    // Leases of collected handles arrive here; live ones are linked from
+    // liveLeases so they stay reachable until then
+    private final ReferenceQueue<MusicFile> collected = new ReferenceQueue<>();
+    private Lease liveLeases;
+
+    private TrackStore() {
+    }
+
+    public static TrackStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the row holding exactly this metadata, adding one if the path is
+     * new or its metadata changed, and records {@code handle} as referring to it.
+     */
+    synchronized int intern(MusicFile handle, String path, long size, String title, String artist,
+            String album, long duration) {
+        reclaim();
+        Integer existing = idByPath.get(path);
+        int trackId;
+        if (existing != null) {
+            int id = existing;
+            if (sizes[id] == size && durations[id] == duration
+                    && equal(titles[id], title)
+                    && equal(artistPool.get(artists[id]), artist)
+                    && equal(albumPool.get(albums[id]), album)) {
+                lease(handle, id);
+                return id;
+            }
+            path = paths[id]; // share the path string with the older row
+            trackId = trackIds[id];
+        } else {
+            trackId = nextTrackId++;
+        }
+
+        int id = allocateRow();
+        paths[id] = path;
+        titles[id] = title;
+        artists[id] = artistPool.intern(artist);
+        albums[id] = albumPool.intern(album);
+        sizes[id] = size;
+        durations[id] = duration;
+        trackIds[id] = trackId;
+        idByPath.put(path, id);
+        lease(handle, id);
+        return id;
+    }
+
+    private int allocateRow() {
+        if (freeCount > 0) {
+            return freeRows[--freeCount];
+        }
+        if (count == paths.length) {
+            grow(count + (count >> 1));
+        }
+        return count++;
+    }
+
+    private void grow(int capacity) {
+        paths = Arrays.copyOf(paths, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        artists = Arrays.copyOf(artists, capacity);
+        albums = Arrays.copyOf(albums, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        trackIds = Arrays.copyOf(trackIds, capacity);
+        handleCounts = Arrays.copyOf(handleCounts, capacity);
+    }
+
+    private void lease(MusicFile handle, int id) {
+        Lease lease = new Lease(handle, id, collected);
+        lease.next = liveLeases;
+        if (liveLeases != null) {
+            liveLeases.prev = lease;
+        }
+        liveLeases = lease;
+        handleCounts[id]++;
+    }
+
+    // Frees the rows whose last handle has been collected since the last call
+    private void reclaim() {
+        Lease lease;
+        while ((lease = (Lease) collected.poll()) != null) {
+            if (lease.prev != null) {
+                lease.prev.next = lease.next;
+            } else {
+                liveLeases = lease.next;
+            }
+            if (lease.next != null) {
+                lease.next.prev = lease.prev;
+            }
+            if (--handleCounts[lease.row] == 0) {
+                freeRow(lease.row);
+            }
+        }
+    }
+
+    private void freeRow(int id) {
+        Integer newest = idByPath.get(paths[id]);
+        if (newest != null && newest == id) {
+            idByPath.remove(paths[id]);
+        }
+        artistPool.release(artists[id]);
+        albumPool.release(albums[id]);
+        paths[id] = null;
+        titles[id] = null;
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+        }
+        freeRows[freeCount++] = id;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Number of rows some handle still refers to (or not yet known to be unreferenced). */
+    public synchronized int size() {
+        reclaim();
+        return count - freeCount;
+    }
+
+    public synchronized String getPath(int id) {
+        return paths[id];
+    }
+
+    /** Id shared by every row of the same path, stable while any of them is in use. */
+    public synchronized int getTrackId(int id) {
+        return trackIds[id];
+    }
+
+    public synchronized String getTitle(int id) {
+        return titles[id];
+    }
+
+    public synchronized String getArtist(int id) {
+        return artistPool.get(artists[id]);
+    }
+
+    public synchronized String getAlbum(int id) {
+        return albumPool.get(albums[id]);
+    }
+
+    public synchronized long getSize(int id) {
+        return sizes[id];
+    }
+
+    public synchronized long getDuration(int id) {
+        return durations[id];
+    }
+
+    /** Weak link from a row to one of its handles. */
+    private static final class Lease extends WeakReference<MusicFile> {
+        final int row;
+        Lease prev;
+        Lease next;
+
+        Lease(MusicFile handle, int row, ReferenceQueue<MusicFile> queue) {
+            super(handle, queue);
+            this.row = row;
+        }
+    }
+
+    /** Interned strings addressed by index and counted by use; -1 stands for null. */
+    private static class StringPool {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int[] uses = new int[64];
+        private int[] free = new int[16];
+        private int freeCount = 0;
+
+        int intern(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer i = indices.get(s);
+            if (i == null) {
+                if (freeCount > 0) {
+                    i = free[--freeCount];
+                    values.set(i, s);
+                } else {
+                    i = values.size();
+                    values.add(s);
+                    if (i == uses.length) {
+                        uses = Arrays.copyOf(uses, i * 2);
+                    }
+                }
+                indices.put(s, i);
+            }
+            uses[i]++;
+            return i;
+        }
+
+        void release(int i) {
+            if (i < 0 || --uses[i] > 0) {
+                return;
+            }
+            indices.remove(values.get(i));
+            values.set(i, null);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = i;
+        }
+
+        String get(int i) {
+            return i < 0 ? null : values.get(i);
+        }
+    }
+}
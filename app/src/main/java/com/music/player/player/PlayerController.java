@@ -3,6 +3,12 @@ package com.music.player.player;
 import com.music.player.model.*;
 import com.music.player.utils.*;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class PlayerController {
 
     static {
@@ -13,12 +19,55 @@ public class PlayerController {
         }
     }
 
+    private static final String TAG = "PlayerController";
+
+    // Native play events, see audio_player.h
+    private static final int EVENT_END = 1;
+    private static final int EVENT_MARKER = 2;
+    private static final int EVENT_ERROR = 3;
+    private static final int EVENT_CROSSFADE = 4;
+
+    /** Longest crossfade; the setting and the native engine both take their limit from here. */
+    public static final int MAX_CROSSFADE_MS = 12000;
+
+    public static final int ERROR_SETUP = 1;
+    public static final int ERROR_DECODE = 2;
+    public static final int ERROR_OUTPUT = 3;
+
+    /** Play events of the current track, delivered on the main thread. */
+    public interface PlaybackEventListener {
+        /**
+         * The track played to its end, or started crossfading into the primed
+         * next one; in both cases the next one may have taken over.
+         */
+        void onTrackEnded();
+
+        void onMarkerReached(int positionMs);
+
+        void onPlaybackError(int errorCode);
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final List<PlayerController> listening = new CopyOnWriteArrayList<>();
+
+    private final FileLogger fileLogger;
+    private PlaybackEventListener eventListener;
+
     private long playerPtr = 0;
 
+    // Next track, created and primed ahead of time for a gapless switch
+    private long nextPtr = 0;
+    private String nextPath;
+
+    // Previous track still fading out under the current one
+    private long fadingPtr = 0;
+
     private native long createPlayer(String filePath);
 
     private native void setupPlayer(long ptr, String path);
 
+    private native long getPlayerId(long ptr);
+
     private native void play(long ptr);
 
     private native void pause(long ptr);
@@ -37,27 +86,102 @@ public class PlayerController {
 
     private native void destroyPlayer(long ptr);
 
+    private static native void releaseEngine();
+
+    private native void linkNext(long ptr, long nextPtr);
+
+    private native void unlinkNext(long ptr);
+
+    private native boolean hasHandedOff(long ptr);
+
+    private static native int readTap(short[] out);
+
+    private native void setMarker(long ptr, int position);
+
+    private native boolean isFadingOut(long ptr);
+
+    private static native void setCrossfade(int ms);
+
+    public PlayerController(FileLogger fileLogger) {
+        this.fileLogger = fileLogger;
+    }
+
+    public void setEventListener(PlaybackEventListener listener) {
+        eventListener = listener;
+        if (listener != null) {
+            if (!listening.contains(this)) listening.add(this);
+        } else {
+            listening.remove(this);
+        }
+    }
+
+    // Called by the native event thread
+    // Events name the player by id: by the time one is dispatched the player may
+    // be freed and its address reused by a newer one
+    private static void onNativeEvent(long id, int type, int arg) {
+        mainHandler.post(() -> {
+            for (PlayerController controller : listening) {
+                controller.dispatchEvent(id, type, arg);
+            }
+        });
+    }
+
+    private boolean isPlayer(long ptr, long id) {
+        return ptr != 0 && id != 0 && getPlayerId(ptr) == id;
+    }
+
+    private void dispatchEvent(long id, int type, int arg) {
+        if (type == EVENT_END && isPlayer(fadingPtr, id)) {
+            releaseFading(); // fade-out done
+            return;
+        }
+        // Events of a primed or already released player are not ours to report
+        if (eventListener == null || !isPlayer(playerPtr, id)) return;
+        switch (type) {
+            case EVENT_END:
+            case EVENT_CROSSFADE: eventListener.onTrackEnded(); break;
+            case EVENT_MARKER: eventListener.onMarkerReached(arg); break;
+            case EVENT_ERROR: eventListener.onPlaybackError(arg); break;
+        }
+    }
+
     public boolean isReady() {
         return playerPtr != 0;
     }
 
     public void load(String path) {
-        release();
-        playerPtr = createPlayer(path);
-        if (playerPtr != 0) {
-            setupPlayer(playerPtr, path);
+        long start = System.nanoTime();
+        if (nextPtr != 0 && path.equals(nextPath)) {
+            // Skipping to the track already primed: just swap it in
+            long primed = nextPtr;
+            nextPtr = 0;
+            nextPath = null;
+            release();
+            playerPtr = primed;
+        } else {
+            release();
+            playerPtr = createPlayer(path);
+            if (playerPtr != 0) {
+                setupPlayer(playerPtr, path);
+            }
         }
+        // Track-change cost; the first load also pays for creating the shared engine
+        fileLogger.d(TAG, "load took " + (System.nanoTime() - start) / 1000 + " us");
     }
 
+    // A fading-out track follows play and pause so the overlap stays in step
     public void play() {
         play(playerPtr);
+        if (fadingPtr != 0 && isFadingOut(fadingPtr)) play(fadingPtr);
     }
 
     public void pause() {
         pause(playerPtr);
+        if (fadingPtr != 0) pause(fadingPtr);
     }
 
     public void stop() {
+        releaseFading();
         stop(playerPtr);
     }
 
@@ -78,13 +202,113 @@ public class PlayerController {
     }
 
     public void seekTo(int position) {
+        releaseFading();
         seekTo(playerPtr, position);
     }
 
+    /**
+     * Fires {@link PlaybackEventListener#onMarkerReached} once playback of the
+     * current track reaches {@code positionMs}; a negative position clears it.
+     */
+    public void setMarker(int positionMs) {
+        if (playerPtr != 0) setMarker(playerPtr, positionMs);
+    }
+
+    /**
+     * Creates and primes the player for {@code path}, which then starts by
+     * itself, without a gap, the moment the current track ends.
+     */
+    public void prepareNext(String path) {
+        if (playerPtr == 0 || path == null) {
+            clearNext();
+            return;
+        }
+        if (nextPtr != 0 && path.equals(nextPath)) {
+            return;
+        }
+        clearNext();
+        long ptr = createPlayer(path);
+        if (ptr == 0) {
+            return;
+        }
+        setupPlayer(ptr, path);
+        nextPtr = ptr;
+        nextPath = path;
+        linkNext(playerPtr, nextPtr);
+    }
+
+    public void clearNext() {
+        if (nextPtr != 0) {
+            if (playerPtr != 0) {
+                unlinkNext(playerPtr);
+            }
+            destroyPlayer(nextPtr);
+            nextPtr = 0;
+            nextPath = null;
+        }
+    }
+
+    /**
+     * If the primed next track has already taken over from the finished one,
+     * makes it the current player and returns true.
+     */
+    public boolean advanceIfHandedOff() {
+        if (playerPtr == 0 || nextPtr == 0 || !hasHandedOff(playerPtr)) {
+            return false;
+        }
+        releaseFading();
+        if (isFadingOut(playerPtr)) {
+            // Crossfading: it stays audible until its own end event
+            fadingPtr = playerPtr;
+        } else {
+            destroyPlayer(playerPtr);
+        }
+        playerPtr = nextPtr;
+        nextPtr = 0;
+        nextPath = null;
+        return true;
+    }
+
+    private void releaseFading() {
+        if (fadingPtr != 0) {
+            destroyPlayer(fadingPtr);
+            fadingPtr = 0;
+        }
+    }
+
     public void release() {
+        clearNext();
+        releaseFading();
         if (playerPtr != 0) {
             destroyPlayer(playerPtr);
             playerPtr = 0;
         }
     }
+
+    /**
+     * Sets how long consecutive tracks overlap, with an equal-power fade, when
+     * one hands over to the primed next one; 0 keeps the plain gapless switch.
+     * Only tracks linked with {@link #prepareNext} overlap. Applies to every
+     * player in the process.
+     */
+    public static void setCrossfadeDuration(int ms) {
+        setCrossfade(Math.max(0, Math.min(ms, MAX_CROSSFADE_MS)));
+    }
+
+    /**
+     * Fills {@code out} with the latest mono samples of what is being played,
+     * oldest first, straight from the decoder feeding the audio sink. Returns
+     * how many are real; the array is silence when nothing plays.
+     */
+    public static int readOutputSamples(short[] out) {
+        return readTap(out);
+    }
+
+    /**
+     * Frees the process-wide OpenSL ES engine kept between tracks. Only does
+     * anything once every player is released.
+     */
+    public static void shutdownEngine() {
+        releaseEngine();
+    }
 }
@@ -141,10 +141,7 @@ public class CircularVisualizerView extends TextureView implements TextureView.S
 
     public void setLogger(FileLogger fileLogger) { this.fileLogger = fileLogger; }
     public void setPcmSource(PcmVisualizerSource source) { this.pcmSource = source; }
-    public void setPlaying(boolean playing) {
-        this.isPlaying = playing;
-        if (pcmSource != null) pcmSource.setPaused(!playing);
-    }
+    public void setPlaying(boolean playing) { this.isPlaying = playing; }
     public void setAlbumArt(Bitmap bmp) { this.albumArtBmp = bmp; }
 
     private void startRenderThread() {
@@ -0,0 +1,242 @@
+package com.music.player.scanner;
+
+import com.music.player.manager.AlbumArtManager;
+import com.music.player.model.*;
+import com.music.player.utils.*;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the music directory tree with one FileObserver (inotify) per
+ * directory and turns file-system events into incremental library updates:
+ * new or rewritten files are extracted one by one, deleted files and folders
+ * are dropped from the metadata cache. No full rescan is involved.
+ */
+public class LibraryWatcher {
+
+    private static final String TAG = "LibraryWatcher";
+
+    private static final int MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    // Events are collected for this long before being processed, so copying an
+    // album produces one update instead of one per file.
+    private static final long DEBOUNCE_MS = 1000;
+
+    public interface Listener {
+        /** Called on the main thread. {@code added} may contain updated tracks. */
+        void onLibraryChanged(List<MusicFile> added, List<String> removedPaths);
+    }
+
+    private final Context context;
+    private final String rootDir;
+    private final Listener listener;
+    private final FileLogger fileLogger;
+    private final Handler mainHandler;
+
+    private HandlerThread workerThread;
+    private volatile Handler worker;
+
+    // Both only touched on the worker thread
+    private final Map<String, DirObserver> observers = new HashMap<>();
+    private final Set<String> dirty = new HashSet<>();
+
+    private final Runnable processRunnable = this::processDirty;
+
+    public LibraryWatcher(Context context, String rootDir, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.rootDir = new File(rootDir).getAbsolutePath();
+        this.listener = listener;
+        this.fileLogger = FileLogger.getInstance(context);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public String getRootDir() {
+        return rootDir;
+    }
+
+    public void start() {
+        if (workerThread != null) {
+            return;
+        }
+        workerThread = new HandlerThread("LibraryWatcher");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+        worker.post(this::watchIndexedTree);
+    }
+
+    public void stop() {
+        if (workerThread == null) {
+            return;
+        }
+        worker.removeCallbacksAndMessages(null);
+        worker.post(() -> {
+            for (DirObserver o : observers.values()) {
+                o.stopWatching();
+            }
+            observers.clear();
+            dirty.clear();
+        });
+        workerThread.quitSafely();
+        workerThread = null;
+        worker = null;
+    }
+
+    /**
+     * Installs observers on every directory known from the last scan. Falls
+     * back to walking the tree when the directory index is still empty.
+     */
+    private void watchIndexedTree() {
+        List<String> dirs = MusicMetadataCache.getInstance(context).getIndexedDirs(rootDir);
+        if (dirs.isEmpty()) {
+            watchTree(new File(rootDir), null);
+        } else {
+            for (String dir : dirs) {
+                watch(dir);
+            }
+        }
+        fileLogger.i(TAG, "Watching " + observers.size() + " directories under " + rootDir);
+    }
+
+    private void watch(String dir) {
+        if (observers.containsKey(dir)) {
+            return;
+        }
+        DirObserver observer = new DirObserver(dir);
+        observer.startWatching();
+        observers.put(dir, observer);
+    }
+
+    /**
+     * Watches {@code dir} and everything below it. When {@code found} is not
+     * null every audio file in the tree is added to it (a folder moved in).
+     */
+    private void watchTree(File dir, List<File> found) {
+        if (dir.isHidden()) {
+            return;
+        }
+        watch(dir.getAbsolutePath());
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                watchTree(file, found);
+            } else if (found != null && MusicScanner.isAudioFile(file.getName())) {
+                found.add(file);
+            }
+        }
+    }
+
+    private void unwatchTree(String dir) {
+        String prefix = dir + File.separator;
+        Iterator<Map.Entry<String, DirObserver>> it = observers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, DirObserver> e = it.next();
+            if (e.getKey().equals(dir) || e.getKey().startsWith(prefix)) {
+                e.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private void onEvent(String path) {
+        // FileObserver threads -> worker thread
+        Handler h = worker;
+        if (h == null) {
+            return;
+        }
+        h.post(() -> {
+            dirty.add(path);
+            h.removeCallbacks(processRunnable);
+            h.postDelayed(processRunnable, DEBOUNCE_MS);
+        });
+    }
+
+    private void processDirty() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<>(dirty);
+        dirty.clear();
+
+        MusicMetadataCache metaCache = MusicMetadataCache.getInstance(context);
+        AlbumArtManager artManager = AlbumArtManager.getInstance(context);
+        List<File> toExtract = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        for (String path : paths) {
+            File f = new File(path);
+            if (f.isDirectory()) {
+                if (!observers.containsKey(path)) {
+                    watchTree(f, toExtract);
+                }
+            } else if (f.isFile()) {
+                if (MusicScanner.isAudioFile(f.getName())) {
+                    toExtract.add(f);
+                }
+            } else if (observers.containsKey(path)) {
+                // A watched folder was deleted or moved away
+                unwatchTree(path);
+                for (String gone : metaCache.removeUnder(path)) {
+                    artManager.deleteAlbumArt(gone);
+                    removed.add(gone);
+                }
+            } else if (MusicScanner.isAudioFile(f.getName())) {
+                metaCache.remove(path);
+                artManager.deleteAlbumArt(path);
+                removed.add(path);
+            }
+        }
+
+        // Extract first, then write everything in one short transaction
+        List<MusicFile> added = new ArrayList<>();
+        List<MusicScanner.PendingWrite> pending = new ArrayList<>();
+        for (File f : toExtract) {
+            MusicFile music = MusicScanner.scanFile(context, f, pending);
+            if (music != null) {
+                added.add(music);
+            }
+        }
+        MusicScanner.writeBatch(metaCache, pending);
+
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        fileLogger.i(TAG, "Library changed: " + added.size() + " added/updated, "
+                + removed.size() + " removed");
+        mainHandler.post(() -> listener.onLibraryChanged(added, removed));
+    }
+
+    private class DirObserver extends FileObserver {
+        private final String dir;
+
+        @SuppressWarnings("deprecation") // File-based constructor needs API 29
+        DirObserver(String dir) {
+            super(dir, MASK);
+            this.dir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            if (name == null || name.startsWith(".")) {
+                return;
+            }
+            LibraryWatcher.this.onEvent(dir + File.separator + name);
+        }
+    }
+}
@@ -12,15 +12,20 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MusicMetadataCache {
 
     private static final String TAG = "MusicMetadataCache";
     private static final String DB_NAME = "music_metadata_cache.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 5;
 
     private static final String TABLE = "music_cache";
     private static final String COL_PATH = "path";
@@ -31,11 +36,35 @@ public class MusicMetadataCache {
     private static final String COL_ALBUM = "album";
     private static final String COL_DURATION = "duration";
     private static final String COL_HAS_ART = "has_album_art";
+    private static final String COL_DIR = "dir";
+    private static final String COL_ART_KEY = "art_key";
+    private static final String COL_NAME = "name"; // file name without extension, for search
+
+    private static final String DIR_TABLE = "dir_index";
+    private static final String COL_PARENT = "parent";
+
+    private static final String KEEP_TABLE = "temp.scan_keep";
+
+    // Full-text index over music_cache (external content: it stores no copy of
+    // the strings). Kept in sync by triggers, so every write path updates it.
+    // The file name is indexed rather than the path: every track shares the
+    // directory words, so a query like "mu" would otherwise match them all.
+    private static final String FTS_TABLE = "music_fts";
 
     private static MusicMetadataCache instance;
     private final DbHelper dbHelper;
     private final FileLogger logger;
 
+    // Open batch: a transaction on the batch thread plus compiled inserts that
+    // are re-bound for every row instead of building ContentValues each time.
+    private SQLiteDatabase batchDb;
+    private Thread batchThread;
+    private SQLiteStatement batchInsert;
+    private SQLiteStatement batchDirInsert;
+
+    // Whole-table snapshot taken by preload(); while set, lookups never hit SQLite
+    private volatile Preload preload;
+
     private MusicMetadataCache(Context context) {
         dbHelper = new DbHelper(context.getApplicationContext());
         logger = FileLogger.getInstance(context);
@@ -48,7 +77,193 @@ public class MusicMetadataCache {
         return instance;
     }
 
+    /**
+     * Reads both cache tables once into memory. Until {@link #releasePreload()}
+     * getCached, getCachedInDir, getDirLastModified and getCachedSubdirs are
+     * answered from the snapshot, so a warm rescan costs one pass over SQLite.
+     */
+    public void preload() {
+        Preload p = new Preload();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(TABLE, null, null, null, null, null, null);
+            if (cursor != null) {
+                int iPath = cursor.getColumnIndexOrThrow(COL_PATH);
+                int iSize = cursor.getColumnIndexOrThrow(COL_FILE_SIZE);
+                int iModified = cursor.getColumnIndexOrThrow(COL_LAST_MODIFIED);
+                int iTitle = cursor.getColumnIndexOrThrow(COL_TITLE);
+                int iArtist = cursor.getColumnIndexOrThrow(COL_ARTIST);
+                int iAlbum = cursor.getColumnIndexOrThrow(COL_ALBUM);
+                int iDuration = cursor.getColumnIndexOrThrow(COL_DURATION);
+                int iDir = cursor.getColumnIndexOrThrow(COL_DIR);
+                while (cursor.moveToNext()) {
+                    String path = cursor.getString(iPath);
+                    MusicFile music = new MusicFile(
+                            new File(path).getName(), path, cursor.getLong(iSize),
+                            cursor.getString(iTitle), cursor.getString(iArtist),
+                            cursor.getString(iAlbum), cursor.getLong(iDuration));
+                    p.rows.put(path, new CachedRow(music, cursor.getLong(iModified)));
+                    addToGroup(p.filesByDir, cursor.getString(iDir), music);
+                }
+                cursor.close();
+            }
+
+            cursor = db.query(DIR_TABLE, null, null, null, null, null, null);
+            if (cursor != null) {
+                int iPath = cursor.getColumnIndexOrThrow(COL_PATH);
+                int iParent = cursor.getColumnIndexOrThrow(COL_PARENT);
+                int iModified = cursor.getColumnIndexOrThrow(COL_LAST_MODIFIED);
+                while (cursor.moveToNext()) {
+                    String dir = cursor.getString(iPath);
+                    p.dirModified.put(dir, cursor.getLong(iModified));
+                    addToGroup(p.subdirsByParent, cursor.getString(iParent), dir);
+                }
+            }
+            preload = p;
+            logger.i(TAG, "Preloaded " + p.rows.size() + " tracks, " + p.dirModified.size() + " directories");
+        } catch (Exception e) {
+            logger.e(TAG, "preload error: " + e.getMessage());
+            preload = null;
+        } finally {
+            if (cursor != null && !cursor.isClosed())
+                cursor.close();
+        }
+    }
+
+    /**
+     * Returns every cached track under {@code rootDir} in one query. This is the
+     * library as of the last completed scan, shown at startup before rescanning.
+     */
+    public List<MusicFile> loadLibrary(String rootDir) {
+        List<MusicFile> result = new ArrayList<>();
+        String prefix = new File(rootDir).getAbsolutePath() + File.separator;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(TABLE, null, COL_PATH + " LIKE ? ESCAPE '\\'",
+                    new String[] { escapeLike(prefix) + "%" }, null, null, null);
+            if (cursor != null) {
+                int iPath = cursor.getColumnIndexOrThrow(COL_PATH);
+                int iSize = cursor.getColumnIndexOrThrow(COL_FILE_SIZE);
+                int iTitle = cursor.getColumnIndexOrThrow(COL_TITLE);
+                int iArtist = cursor.getColumnIndexOrThrow(COL_ARTIST);
+                int iAlbum = cursor.getColumnIndexOrThrow(COL_ALBUM);
+                int iDuration = cursor.getColumnIndexOrThrow(COL_DURATION);
+                while (cursor.moveToNext()) {
+                    String path = cursor.getString(iPath);
+                    result.add(new MusicFile(
+                            new File(path).getName(), path, cursor.getLong(iSize),
+                            cursor.getString(iTitle), cursor.getString(iArtist),
+                            cursor.getString(iAlbum), cursor.getLong(iDuration)));
+                }
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "loadLibrary error: " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns every directory under (and including) {@code rootDir} recorded by
+     * the last completed scan, in one query.
+     */
+    public List<String> getIndexedDirs(String rootDir) {
+        List<String> result = new ArrayList<>();
+        String root = new File(rootDir).getAbsolutePath();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(DIR_TABLE, new String[] { COL_PATH },
+                    COL_PATH + "=? OR " + COL_PATH + " LIKE ? ESCAPE '\\'",
+                    new String[] { root, escapeLike(root + File.separator) + "%" },
+                    null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "getIndexedDirs error: " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    public void remove(String path) {
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.delete(TABLE, COL_PATH + "=?", new String[] { path });
+        } catch (Exception e) {
+            logger.e(TAG, "remove error for " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a deleted directory: its index rows and every cached track below it.
+     * Returns the paths of the removed tracks.
+     */
+    public List<String> removeUnder(String dir) {
+        List<String> removed = new ArrayList<>();
+        String[] args = new String[] { dir, escapeLike(dir + File.separator) + "%" };
+        String where = COL_PATH + "=? OR " + COL_PATH + " LIKE ? ESCAPE '\\'";
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                cursor = db.query(TABLE, new String[] { COL_PATH }, where, args, null, null, null);
+                while (cursor != null && cursor.moveToNext()) {
+                    removed.add(cursor.getString(0));
+                }
+                db.delete(TABLE, where, args);
+                db.delete(DIR_TABLE, where, args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "removeUnder error for " + dir + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return removed;
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    public void releasePreload() {
+        preload = null;
+    }
+
+    private static <T> void addToGroup(Map<String, List<T>> groups, String key, T value) {
+        if (key == null) {
+            return;
+        }
+        List<T> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        group.add(value);
+    }
+
     public MusicFile getCached(String path, long fileSize, long lastModified) {
+        Preload p = preload;
+        if (p != null) {
+            CachedRow row = p.rows.get(path);
+            if (row != null && row.music.getSize() == fileSize && row.lastModified == lastModified) {
+                return row.music;
+            }
+            return null;
+        }
+
         SQLiteDatabase db = null;
         Cursor cursor = null;
         try {
@@ -61,13 +276,7 @@ public class MusicMetadataCache {
                     null, null, null);
 
             if (cursor != null && cursor.moveToFirst()) {
-                String title = cursor.getString(cursor.getColumnIndexOrThrow(COL_TITLE));
-                String artist = cursor.getString(cursor.getColumnIndexOrThrow(COL_ARTIST));
-                String album = cursor.getString(cursor.getColumnIndexOrThrow(COL_ALBUM));
-                long duration = cursor.getLong(cursor.getColumnIndexOrThrow(COL_DURATION));
-                String fileName = new java.io.File(path).getName();
-
-                return new MusicFile(fileName, path, fileSize, title, artist, album, duration);
+                return readMusicFile(cursor);
             }
         } catch (Exception e) {
             logger.e(TAG, "getCached error for " + path + ": " + e.getMessage());
@@ -78,7 +287,72 @@ public class MusicMetadataCache {
         return null;
     }
 
-    public void putCache(MusicFile music, long lastModified, boolean hasAlbumArt) {
+    /**
+     * Starts a batch: every putCache/putDir call made on this thread until
+     * {@link #commitBatch()} goes into a single transaction. Writes from other
+     * threads wait for it to commit, so nothing slow may run inside a batch.
+     */
+    public synchronized void beginBatch() {
+        if (batchDb != null) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            batchDb = db;
+            batchThread = Thread.currentThread();
+            batchInsert = db.compileStatement(
+                    "INSERT OR REPLACE INTO " + TABLE + " (" +
+                            COL_PATH + ", " + COL_FILE_SIZE + ", " + COL_LAST_MODIFIED + ", " +
+                            COL_TITLE + ", " + COL_ARTIST + ", " + COL_ALBUM + ", " +
+                            COL_DURATION + ", " + COL_HAS_ART + ", " + COL_DIR + ", " + COL_ART_KEY + ", " +
+                            COL_NAME + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            batchDirInsert = db.compileStatement(
+                    "INSERT OR REPLACE INTO " + DIR_TABLE + " (" +
+                            COL_PATH + ", " + COL_PARENT + ", " + COL_LAST_MODIFIED +
+                            ") VALUES (?, ?, ?)");
+        } catch (Exception e) {
+            logger.e(TAG, "beginBatch error: " + e.getMessage());
+            commitBatch();
+        }
+    }
+
+    /**
+     * Commits the batch opened by {@link #beginBatch()}. Rows written so far are
+     * kept even if the caller gives up half way, they are valid on their own.
+     */
+    public synchronized void commitBatch() {
+        if (batchDb == null || batchThread != Thread.currentThread()) {
+            return;
+        }
+        try {
+            if (batchInsert != null)
+                batchInsert.close();
+            if (batchDirInsert != null)
+                batchDirInsert.close();
+            if (batchDb.inTransaction()) {
+                batchDb.setTransactionSuccessful();
+                batchDb.endTransaction();
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "commitBatch error: " + e.getMessage());
+        } finally {
+            batchInsert = null;
+            batchDirInsert = null;
+            batchDb = null;
+            batchThread = null;
+        }
+    }
+
+    /**
+     * Stores the metadata of one track. {@code artKey} is the key of its stored
+     * album art in AlbumArtManager, or null if it has none.
+     */
+    public void putCache(MusicFile music, long lastModified, String artKey) {
+        if (putCacheBatched(music, lastModified, artKey)) {
+            return;
+        }
+
         SQLiteDatabase db = null;
         try {
             db = dbHelper.getWritableDatabase();
@@ -90,13 +364,269 @@ public class MusicMetadataCache {
             cv.put(COL_ARTIST, music.getArtist());
             cv.put(COL_ALBUM, music.getAlbum());
             cv.put(COL_DURATION, music.getDuration());
-            cv.put(COL_HAS_ART, hasAlbumArt ? 1 : 0);
+            cv.put(COL_HAS_ART, artKey != null ? 1 : 0);
+            cv.put(COL_DIR, new File(music.getPath()).getParent());
+            cv.put(COL_ART_KEY, artKey);
+            cv.put(COL_NAME, MusicFile.fileStem(music.getPath()));
             db.insertWithOnConflict(TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
         } catch (Exception e) {
             logger.e(TAG, "putCache error for " + music.getPath() + ": " + e.getMessage());
         }
     }
 
+    // The open transaction belongs to the batch thread. Writers on any other
+    // thread are not batched; they block until it commits.
+    private synchronized boolean putCacheBatched(MusicFile music, long lastModified, String artKey) {
+        if (batchInsert == null || batchThread != Thread.currentThread()) {
+            return false;
+        }
+        try {
+            batchInsert.clearBindings();
+            batchInsert.bindString(1, music.getPath());
+            batchInsert.bindLong(2, music.getSize());
+            batchInsert.bindLong(3, lastModified);
+            bindNullable(batchInsert, 4, music.getTitle());
+            bindNullable(batchInsert, 5, music.getArtist());
+            bindNullable(batchInsert, 6, music.getAlbum());
+            batchInsert.bindLong(7, music.getDuration());
+            batchInsert.bindLong(8, artKey != null ? 1 : 0);
+            bindNullable(batchInsert, 9, new File(music.getPath()).getParent());
+            bindNullable(batchInsert, 10, artKey);
+            batchInsert.bindString(11, MusicFile.fileStem(music.getPath()));
+            batchInsert.executeInsert();
+        } catch (Exception e) {
+            logger.e(TAG, "putCache error for " + music.getPath() + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    private static void bindNullable(SQLiteStatement stmt, int index, String value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        } else {
+            stmt.bindString(index, value);
+        }
+    }
+
+    /**
+     * Returns every cached track whose parent directory is {@code dir}. Used for
+     * directories whose mtime is unchanged, so their files are not stat'ed.
+     */
+    public List<MusicFile> getCachedInDir(String dir) {
+        List<MusicFile> result = new ArrayList<>();
+        Preload p = preload;
+        if (p != null) {
+            List<MusicFile> group = p.filesByDir.get(dir);
+            if (group != null) {
+                result.addAll(group);
+            }
+            return result;
+        }
+
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(TABLE, null, COL_DIR + "=?", new String[] { dir }, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                result.add(readMusicFile(cursor));
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "getCachedInDir error for " + dir + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the last-modified time recorded for {@code dir} by a previous scan,
+     * or -1 if the directory has never been indexed.
+     */
+    public long getDirLastModified(String dir) {
+        Preload p = preload;
+        if (p != null) {
+            Long modified = p.dirModified.get(dir);
+            return modified != null ? modified : -1;
+        }
+
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(DIR_TABLE,
+                    new String[] { COL_LAST_MODIFIED },
+                    COL_PATH + "=?",
+                    new String[] { dir },
+                    null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "getDirLastModified error for " + dir + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return -1;
+    }
+
+    public List<String> getCachedSubdirs(String dir) {
+        List<String> result = new ArrayList<>();
+        Preload p = preload;
+        if (p != null) {
+            List<String> group = p.subdirsByParent.get(dir);
+            if (group != null) {
+                result.addAll(group);
+            }
+            return result;
+        }
+
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(DIR_TABLE,
+                    new String[] { COL_PATH },
+                    COL_PARENT + "=?",
+                    new String[] { dir },
+                    null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "getCachedSubdirs error for " + dir + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    public void putDir(String dir, String parent, long lastModified) {
+        if (putDirBatched(dir, parent, lastModified)) {
+            return;
+        }
+
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            ContentValues cv = new ContentValues();
+            cv.put(COL_PATH, dir);
+            cv.put(COL_PARENT, parent);
+            cv.put(COL_LAST_MODIFIED, lastModified);
+            db.insertWithOnConflict(DIR_TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (Exception e) {
+            logger.e(TAG, "putDir error for " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized boolean putDirBatched(String dir, String parent, long lastModified) {
+        if (batchDirInsert == null || batchThread != Thread.currentThread()) {
+            return false;
+        }
+        try {
+            batchDirInsert.clearBindings();
+            batchDirInsert.bindString(1, dir);
+            bindNullable(batchDirInsert, 2, parent);
+            batchDirInsert.bindLong(3, lastModified);
+            batchDirInsert.executeInsert();
+        } catch (Exception e) {
+            logger.e(TAG, "putDir error for " + dir + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    public void removeStaleDirs(Collection<String> currentDirs) {
+        try {
+            int removed = deleteMissing(DIR_TABLE, currentDirs);
+            if (removed > 0) {
+                logger.w(TAG, "Removed " + removed + " stale directory entries");
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "removeStaleDirs error: " + e.getMessage());
+        }
+    }
+
+    private MusicFile readMusicFile(Cursor cursor) {
+        String path = cursor.getString(cursor.getColumnIndexOrThrow(COL_PATH));
+        long fileSize = cursor.getLong(cursor.getColumnIndexOrThrow(COL_FILE_SIZE));
+        String title = cursor.getString(cursor.getColumnIndexOrThrow(COL_TITLE));
+        String artist = cursor.getString(cursor.getColumnIndexOrThrow(COL_ARTIST));
+        String album = cursor.getString(cursor.getColumnIndexOrThrow(COL_ALBUM));
+        long duration = cursor.getLong(cursor.getColumnIndexOrThrow(COL_DURATION));
+        String fileName = new File(path).getName();
+
+        return new MusicFile(fileName, path, fileSize, title, artist, album, duration);
+    }
+
+    /**
+     * Returns the path -> album art key index of every track that has art.
+     */
+    public Map<String, String> loadArtIndex() {
+        Map<String, String> result = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.query(TABLE, new String[] { COL_PATH, COL_ART_KEY },
+                    COL_ART_KEY + " IS NOT NULL", null, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getString(1));
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "loadArtIndex error: " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the paths of tracks whose title, artist, album or file name
+     * contains words starting with every word of {@code query}, at most
+     * {@code limit}. Unordered: a result of exactly {@code limit} paths may be
+     * an arbitrary slice of the matches. Empty when the query has no searchable word.
+     */
+    public List<String> searchPaths(String query, int limit) {
+        List<String> result = new ArrayList<>();
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return result;
+        }
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            cursor = db.rawQuery("SELECT " + COL_PATH + " FROM " + TABLE + " WHERE rowid IN (SELECT docid FROM "
+                    + FTS_TABLE + " WHERE " + FTS_TABLE + " MATCH ? LIMIT " + limit + ")", new String[] { match });
+            while (cursor != null && cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            logger.e(TAG, "searchPaths error: " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    // "foo ba" -> "foo* ba*": every word as a prefix, all required
+    private static String toMatchExpression(String query) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
     public boolean cachedHasAlbumArt(String path) {
         SQLiteDatabase db = null;
         Cursor cursor = null;
@@ -119,43 +649,78 @@ public class MusicMetadataCache {
         return false;
     }
 
-    public void removeStaleEntries(List<String> currentPaths) {
-        SQLiteDatabase db = null;
-        Cursor cursor = null;
+    public void removeStaleEntries(Collection<String> currentPaths) {
         try {
-            db = dbHelper.getReadableDatabase();
-            cursor = db.query(TABLE, new String[] { COL_PATH }, null, null, null, null, null);
-
-            List<String> toDelete = new ArrayList<>();
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    String cachedPath = cursor.getString(0);
-                    if (!currentPaths.contains(cachedPath)) {
-                        toDelete.add(cachedPath);
-                    }
-                }
-            }
-            cursor.close();
-            cursor = null;
-
-            if (!toDelete.isEmpty()) {
-                db = dbHelper.getWritableDatabase();
-                for (String p : toDelete) {
-                    db.delete(TABLE, COL_PATH + "=?", new String[] { p });
-                }
-                logger.w(TAG, "Removed " + toDelete.size() + " stale cache entries");
+            long start = System.nanoTime();
+            int removed = deleteMissing(TABLE, currentPaths);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            if (removed > 0) {
+                logger.w(TAG, "Removed " + removed + " stale cache entries");
             }
+            logger.i(TAG, "Pruned against " + currentPaths.size() + " paths in " + elapsedMs + " ms");
         } catch (Exception e) {
             logger.e(TAG, "removeStaleEntries error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes every row of {@code table} whose path is not in {@code keep}. The
+     * keep set is loaded into a temp table and removed with a single anti-join
+     * DELETE, all inside one transaction, so the cost is linear in the library
+     * size instead of one list lookup and one DELETE per row.
+     */
+    private int deleteMissing(String table, Collection<String> keep) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        SQLiteStatement insert = null;
+        try {
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + KEEP_TABLE + " (" +
+                    COL_PATH + " TEXT PRIMARY KEY)");
+            db.execSQL("DELETE FROM " + KEEP_TABLE);
+
+            insert = db.compileStatement(
+                    "INSERT OR IGNORE INTO " + KEEP_TABLE + " (" + COL_PATH + ") VALUES (?)");
+            for (String path : keep) {
+                insert.bindString(1, path);
+                insert.executeInsert();
+            }
+
+            int removed = db.delete(table,
+                    "NOT EXISTS (SELECT 1 FROM " + KEEP_TABLE + " k WHERE k." + COL_PATH +
+                            " = " + table + "." + COL_PATH + ")",
+                    null);
+            db.execSQL("DELETE FROM " + KEEP_TABLE);
+            db.setTransactionSuccessful();
+            return removed;
         } finally {
-            if (cursor != null)
-                cursor.close();
+            if (insert != null)
+                insert.close();
+            db.endTransaction();
         }
     }
 
+    private static class CachedRow {
+        final MusicFile music;
+        final long lastModified;
+
+        CachedRow(MusicFile music, long lastModified) {
+            this.music = music;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class Preload {
+        final Map<String, CachedRow> rows = new HashMap<>();
+        final Map<String, List<MusicFile>> filesByDir = new HashMap<>();
+        final Map<String, Long> dirModified = new HashMap<>();
+        final Map<String, List<String>> subdirsByParent = new HashMap<>();
+    }
+
     private static class DbHelper extends SQLiteOpenHelper {
         DbHelper(Context context) {
             super(context, DB_NAME, null, DB_VERSION);
+            // Lets readers on other threads proceed while a scan batch is open
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -169,13 +734,95 @@ public class MusicMetadataCache {
                             COL_ARTIST + " TEXT, " +
                             COL_ALBUM + " TEXT, " +
                             COL_DURATION + " INTEGER DEFAULT 0, " +
-                            COL_HAS_ART + " INTEGER DEFAULT 0" +
+                            COL_HAS_ART + " INTEGER DEFAULT 0, " +
+                            COL_DIR + " TEXT, " +
+                            COL_ART_KEY + " TEXT, " +
+                            COL_NAME + " TEXT" +
                             ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + TABLE + "_" + COL_DIR +
+                    " ON " + TABLE + " (" + COL_DIR + ")");
+            db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + DIR_TABLE + " (" +
+                            COL_PATH + " TEXT PRIMARY KEY, " +
+                            COL_PARENT + " TEXT, " +
+                            COL_LAST_MODIFIED + " INTEGER NOT NULL" +
+                            ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + DIR_TABLE + "_" + COL_PARENT +
+                    " ON " + DIR_TABLE + " (" + COL_PARENT + ")");
+            createFts(db);
+        }
+
+        private void createFts(SQLiteDatabase db) {
+            String columns = COL_TITLE + ", " + COL_ARTIST + ", " + COL_ALBUM + ", " + COL_NAME;
+            try {
+                // unicode61 folds case and accents beyond ASCII
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS_TABLE + " USING fts4(content=\""
+                        + TABLE + "\", " + columns + ", tokenize=unicode61 \"remove_diacritics=1\")");
+            } catch (Exception e) {
+                // SQLite built without unicode61: default tokenizer, ASCII folding only
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS_TABLE + " USING fts4(content=\""
+                        + TABLE + "\", " + columns + ")");
+            }
+
+            String newValues = "new.rowid, new." + COL_TITLE + ", new." + COL_ARTIST + ", new."
+                    + COL_ALBUM + ", new." + COL_NAME;
+            String deleteOld = "INSERT INTO " + FTS_TABLE + "(" + FTS_TABLE + ", docid, " + columns
+                    + ") VALUES ('delete', old.rowid, old." + COL_TITLE + ", old." + COL_ARTIST
+                    + ", old." + COL_ALBUM + ", old." + COL_NAME + ");";
+            // INSERT OR REPLACE does not fire delete triggers for the row it
+            // replaces, so the row about to be replaced is removed from the index here.
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE + "_bi BEFORE INSERT ON " + TABLE
+                    + " BEGIN INSERT INTO " + FTS_TABLE + "(" + FTS_TABLE + ", docid, " + columns
+                    + ") SELECT 'delete', rowid, " + columns + " FROM " + TABLE
+                    + " WHERE " + COL_PATH + " = new." + COL_PATH + "; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE + "_ai AFTER INSERT ON " + TABLE
+                    + " BEGIN INSERT INTO " + FTS_TABLE + "(docid, " + columns + ") VALUES ("
+                    + newValues + "); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE + "_bd BEFORE DELETE ON " + TABLE
+                    + " BEGIN " + deleteOld + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE + "_bu BEFORE UPDATE ON " + TABLE
+                    + " BEGIN " + deleteOld + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE + "_au AFTER UPDATE ON " + TABLE
+                    + " BEGIN INSERT INTO " + FTS_TABLE + "(docid, " + columns + ") VALUES ("
+                    + newValues + "); END");
+        }
+
+        private void dropFts(SQLiteDatabase db) {
+            for (String suffix : new String[] { "_bi", "_ai", "_bd", "_bu", "_au" }) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE + suffix);
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE);
+        }
+
+        private void fillNames(SQLiteDatabase db) {
+            SQLiteStatement update = db.compileStatement(
+                    "UPDATE " + TABLE + " SET " + COL_NAME + " = ? WHERE rowid = ?");
+            try (Cursor cursor = db.rawQuery("SELECT rowid, " + COL_PATH + " FROM " + TABLE, null)) {
+                while (cursor.moveToNext()) {
+                    update.bindString(1, MusicFile.fileStem(cursor.getString(1)));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                update.close();
+            }
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 3 || oldVersion == 4) {
+                // Rows are kept: add the file name column and rebuild the
+                // full-text index over it in place of the path
+                dropFts(db);
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_NAME + " TEXT");
+                fillNames(db);
+                createFts(db);
+                db.execSQL("INSERT INTO " + FTS_TABLE + "(" + FTS_TABLE + ") VALUES ('rebuild')");
+                return;
+            }
+            dropFts(db);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + DIR_TABLE);
             onCreate(db);
         }
     }
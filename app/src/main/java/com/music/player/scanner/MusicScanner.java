@@ -13,10 +13,20 @@ import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MusicScanner {
 
@@ -26,6 +36,22 @@ public class MusicScanner {
     };
     private static final String TAG = "MusicScanner";
 
+    /** Order of scan results: by title, case-insensitive. */
+    public static final Comparator<MusicFile> TITLE_ORDER = new MusicComparator();
+
+    // One extractor per core; the queue is bounded so a huge directory does not
+    // pile up thousands of pending tasks, the scan thread runs the overflow itself.
+    private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int WORKER_QUEUE_SIZE = WORKER_COUNT * 4;
+
+    // Extracted rows are written in transactions of this many; extraction never
+    // runs inside one, so other writers wait at most for a few inserts.
+    private static final int WRITE_BATCH_ROWS = 64;
+
+    // Bumped by every new scan and by cancelScan(); a scan whose generation is
+    // no longer current stops submitting work and drops its results.
+    private static final AtomicInteger scanGeneration = new AtomicInteger();
+
     public interface ScanListener {
         void onScanStarted();
 
@@ -36,7 +62,23 @@ public class MusicScanner {
         void onScanError(String error);
     }
 
+    /**
+     * Scans {@code dirPath} and all of its subdirectories. Each directory's mtime
+     * is recorded in the metadata cache; a directory whose mtime is unchanged is
+     * not listed again, its tracks and subdirectories come from the cache. Note
+     * that editing a file in place does not touch its directory's mtime, so such
+     * edits are picked up only once something else changes in that directory.
+     */
     public static List<MusicFile> scanDirectory(Context context, String dirPath) {
+        return scanDirectory(context, dirPath, null);
+    }
+
+    /**
+     * Same as {@link #scanDirectory(Context, String)}, additionally reporting every
+     * track to {@code listener.onFileFound} on the scan thread as soon as it is
+     * known: cache hits while walking, cache misses as their extraction finishes.
+     */
+    public static List<MusicFile> scanDirectory(Context context, String dirPath, ScanListener listener) {
         FileLogger fileLogger = FileLogger.getInstance(context);
         MusicMetadataCache metaCache = MusicMetadataCache.getInstance(context);
         AlbumArtManager artManager = AlbumArtManager.getInstance(context);
@@ -49,46 +91,255 @@ public class MusicScanner {
             return musicFiles;
         }
 
-        File[] files = dir.listFiles();
-        if (files == null) {
-            fileLogger.w(TAG, "Could not list files in directory: " + dirPath);
-            return musicFiles;
-        }
+        final int generation = scanGeneration.incrementAndGet();
+        Set<String> currentPaths = new HashSet<>();
+        List<String> currentDirs = new ArrayList<>();
+        List<DirEntry> changedDirs = new ArrayList<>();
+        List<Miss> misses = new ArrayList<>();
+
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(dir.getAbsoluteFile());
+
+        // One read of the whole cache instead of a query per file and directory
+        metaCache.preload();
+        try {
+            while (!pending.isEmpty()) {
+                if (isCancelled(generation)) {
+                    throw new CancellationException("Scan of " + dirPath + " was cancelled");
+                }
 
-        List<String> currentPaths = new ArrayList<>();
+                File current = pending.pop();
+                String currentPath = current.getAbsolutePath();
+                long dirModified = current.lastModified();
+                currentDirs.add(currentPath);
+
+                if (dirModified != 0 && dirModified == metaCache.getDirLastModified(currentPath)) {
+                    // Unchanged directory: trust the cache, one stat for the whole folder
+                    for (MusicFile cached : metaCache.getCachedInDir(currentPath)) {
+                        currentPaths.add(cached.getPath());
+                        musicFiles.add(cached);
+                        notifyFound(listener, cached);
+                    }
+                    for (String sub : metaCache.getCachedSubdirs(currentPath)) {
+                        pending.push(new File(sub));
+                    }
+                    continue;
+                }
 
-        for (File file : files) {
-            if (!file.isFile() || !isAudioFile(file.getName())) {
-                continue;
+                File[] files = current.listFiles();
+                if (files == null) {
+                    fileLogger.w(TAG, "Could not list files in directory: " + currentPath);
+                    continue;
+                }
+                changedDirs.add(new DirEntry(currentPath, current.getParent(), dirModified));
+
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        if (!file.isHidden()) {
+                            pending.push(file);
+                        }
+                        continue;
+                    }
+                    if (!isAudioFile(file.getName())) {
+                        continue;
+                    }
+
+                    String path = file.getAbsolutePath();
+                    long fileSize = file.length();
+                    long lastModified = file.lastModified();
+
+                    currentPaths.add(path);
+
+                    MusicFile cached = metaCache.getCached(path, fileSize, lastModified);
+                    if (cached != null) {
+                        musicFiles.add(cached);
+                        notifyFound(listener, cached);
+                        continue; // cache hit — skip MMR entirely
+                    }
+                    misses.add(new Miss(file, fileSize, lastModified));
+                }
             }
+        } finally {
+            metaCache.releasePreload();
+        }
 
-            String path = file.getAbsolutePath();
-            long fileSize = file.length();
-            long lastModified = file.lastModified();
+        if (!misses.isEmpty()) {
+            extractParallel(context, misses, generation, musicFiles, listener);
+        }
 
-            currentPaths.add(path);
+        if (isCancelled(generation)) {
+            // Partial results must not be used to prune the cache
+            throw new CancellationException("Scan of " + dirPath + " was cancelled");
+        }
 
-            MusicFile cached = metaCache.getCached(path, fileSize, lastModified);
-            if (cached != null) {
-                musicFiles.add(cached);
-                continue; // cache hit — skip MMR entirely
-            }
-            MusicFile fresh = extractMetadata(context, file, artManager);
-            if (fresh != null) {
-                boolean hasArt = artManager.hasAlbumArt(path);
-                metaCache.putCache(fresh, lastModified, hasArt);
-                musicFiles.add(fresh);
+        // The bookkeeping writes go into one short transaction of their own
+        metaCache.beginBatch();
+        try {
+            // Directory mtimes are recorded only once every file below them is cached,
+            // otherwise an interrupted scan would hide the missing files for good.
+            for (DirEntry d : changedDirs) {
+                metaCache.putDir(d.path, d.parent, d.lastModified);
             }
+            metaCache.removeStaleDirs(currentDirs);
+            metaCache.removeStaleEntries(currentPaths);
+        } finally {
+            metaCache.commitBatch();
         }
-
-        metaCache.removeStaleEntries(currentPaths);
         artManager.removeStaleArt(currentPaths);
 
-        Collections.sort(musicFiles, new MusicComparator());
+        Collections.sort(musicFiles, TITLE_ORDER);
+        return musicFiles;
+    }
+
+    /**
+     * Returns the metadata of a single audio file, extracting and caching it if
+     * the cache has nothing current for it. Used for incremental updates.
+     */
+    public static MusicFile scanFile(Context context, File file) {
+        List<PendingWrite> pending = new ArrayList<>(1);
+        MusicFile music = scanFile(context, file, pending);
+        writeBatch(MusicMetadataCache.getInstance(context), pending);
+        return music;
+    }
+
+    /** Like {@link #scanFile(Context, File)}, but queues the cache write in {@code pending}. */
+    static MusicFile scanFile(Context context, File file, List<PendingWrite> pending) {
+        MusicMetadataCache metaCache = MusicMetadataCache.getInstance(context);
+        AlbumArtManager artManager = AlbumArtManager.getInstance(context);
+
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MusicFile cached = metaCache.getCached(path, size, lastModified);
+        if (cached != null) {
+            return cached;
+        }
+        MusicFile fresh = extractMetadata(context, file, size, artManager);
+        if (fresh != null) {
+            pending.add(new PendingWrite(fresh, lastModified, artManager.getArtKey(path)));
+        }
+        return fresh;
+    }
+
+    /** A freshly extracted track not yet written to the metadata cache. */
+    static final class PendingWrite {
+        final MusicFile music;
+        final long lastModified;
+        final String artKey;
+
+        PendingWrite(MusicFile music, long lastModified, String artKey) {
+            this.music = music;
+            this.lastModified = lastModified;
+            this.artKey = artKey;
+        }
+    }
+
+    /** Writes and clears {@code pending} in a single transaction. */
+    static void writeBatch(MusicMetadataCache metaCache, List<PendingWrite> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        metaCache.beginBatch();
+        try {
+            for (PendingWrite w : pending) {
+                metaCache.putCache(w.music, w.lastModified, w.artKey);
+            }
+        } finally {
+            metaCache.commitBatch();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns the library recorded by the last completed scan of {@code dirPath},
+     * sorted like scanDirectory's result. One database read, no file access.
+     */
+    public static List<MusicFile> loadCachedLibrary(Context context, String dirPath) {
+        List<MusicFile> musicFiles = MusicMetadataCache.getInstance(context).loadLibrary(dirPath);
+        Collections.sort(musicFiles, TITLE_ORDER);
         return musicFiles;
     }
 
-    private static MusicFile extractMetadata(Context context, File file, AlbumArtManager artManager) {
+    /**
+     * Cancels the scan currently in progress, if any. Workers finish the file
+     * they are on, nothing further is extracted and no results are delivered.
+     */
+    public static void cancelScan() {
+        scanGeneration.incrementAndGet();
+    }
+
+    private static void notifyFound(ScanListener listener, MusicFile file) {
+        if (listener != null) {
+            listener.onFileFound(file);
+        }
+    }
+
+    private static boolean isCancelled(int generation) {
+        return generation != scanGeneration.get() || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Runs extractMetadata for every cache miss on a core-sized pool. Results are
+     * merged back in submission order on the calling thread, which is also the
+     * only thread writing to the metadata cache, WRITE_BATCH_ROWS at a time.
+     */
+    private static void extractParallel(Context context, List<Miss> misses, int generation,
+            List<MusicFile> out, ScanListener listener) {
+        FileLogger fileLogger = FileLogger.getInstance(context);
+        MusicMetadataCache metaCache = MusicMetadataCache.getInstance(context);
+        AlbumArtManager artManager = AlbumArtManager.getInstance(context);
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                WORKER_COUNT, WORKER_COUNT, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(WORKER_QUEUE_SIZE),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        List<Future<MusicFile>> futures = new ArrayList<>(misses.size());
+        List<PendingWrite> pending = new ArrayList<>(WRITE_BATCH_ROWS);
+        try {
+            for (final Miss miss : misses) {
+                if (isCancelled(generation)) {
+                    break;
+                }
+                futures.add(pool.submit(() -> isCancelled(generation)
+                        ? null
+                        : extractMetadata(context, miss.file, miss.size, artManager)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                if (isCancelled(generation)) {
+                    break;
+                }
+                MusicFile fresh;
+                try {
+                    fresh = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    fileLogger.e(TAG, "Extraction failed for " + misses.get(i).file.getName() + ": " + e.getCause());
+                    continue;
+                }
+                if (fresh != null) {
+                    String artKey = artManager.getArtKey(fresh.getPath());
+                    // The stat from the listing: a file changed during extraction
+                    // then no longer matches its row and is extracted again
+                    pending.add(new PendingWrite(fresh, misses.get(i).lastModified, artKey));
+                    if (pending.size() >= WRITE_BATCH_ROWS) {
+                        writeBatch(metaCache, pending);
+                    }
+                    out.add(fresh);
+                    notifyFound(listener, fresh);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            // Rows extracted before a cancel are still valid
+            writeBatch(metaCache, pending);
+        }
+    }
+
+    /** {@code size} is the size seen when the file was listed, stored with the tags. */
+    private static MusicFile extractMetadata(Context context, File file, long size, AlbumArtManager artManager) {
         FileLogger fileLogger = FileLogger.getInstance(context);
 
         String title = file.getName();
@@ -141,7 +392,7 @@ public class MusicScanner {
         return new MusicFile(
                 file.getName(),
                 file.getAbsolutePath(),
-                file.length(),
+                size,
                 title, artist, album, duration);
     }
 
@@ -151,10 +402,13 @@ public class MusicScanner {
                 if (listener != null) {
                     listener.onScanStarted();
                 }
-                List<MusicFile> files = scanDirectory(context, dirPath);
+                List<MusicFile> files = scanDirectory(context, dirPath, listener);
                 if (listener != null) {
                     listener.onScanCompleted(files);
                 }
+            } catch (CancellationException e) {
+                // Superseded by a newer scan or cancelled by the caller
+                FileLogger.getInstance(context).w(TAG, e.getMessage());
             } catch (Exception e) {
                 FileLogger.getInstance(context).e(TAG, "Unexpected error: " + e);
                 if (listener != null) {
@@ -164,7 +418,7 @@ public class MusicScanner {
         }).start();
     }
 
-    private static boolean isAudioFile(String name) {
+    static boolean isAudioFile(String name) {
         String lower = name.toLowerCase();
         for (String ext : AUDIO_EXTENSIONS) {
             if (lower.endsWith(ext)) {
@@ -191,6 +445,31 @@ public class MusicScanner {
         return out.toString();
     }
 
+    /** A file the cache had nothing current for, with its size and mtime as listed. */
+    private static class Miss {
+        final File file;
+        final long size;
+        final long lastModified;
+
+        Miss(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class DirEntry {
+        final String path;
+        final String parent;
+        final long lastModified;
+
+        DirEntry(String path, String parent, long lastModified) {
+            this.path = path;
+            this.parent = parent;
+            this.lastModified = lastModified;
+        }
+    }
+
     private static class MusicComparator implements Comparator<MusicFile> {
         @Override
         public int compare(MusicFile a, MusicFile b) {
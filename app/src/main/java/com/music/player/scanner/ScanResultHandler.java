@@ -10,9 +10,14 @@ import com.music.player.model.*;
 import com.music.player.utils.*;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.widget.Toast;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ScanResultHandler implements MusicScanner.ScanListener {
     final static String TAG = "ScanResultHandler";
@@ -23,6 +28,16 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
     private SwipeRefreshLayout swipeRefresh;
     private FileLogger fileLogger;
 
+    // Tracks found by the scan thread, handed to the UI in batches at most
+    // every FLUSH_INTERVAL_MS so the list is not re-laid out per file.
+    private static final long FLUSH_INTERVAL_MS = 250;
+    private final Object pendingLock = new Object();
+    private List<MusicFile> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private volatile long lastFlushTime = 0;
+    private Set<String> shownPaths;
+    private final Runnable flushRunnable = this::flushPending;
+
     public ScanResultHandler(MainActivity activity, Handler handler, List<MusicFile> musicFiles,
             MusicFileAdapter adapter, SwipeRefreshLayout swipeRefresh) {
         this.activity = activity;
@@ -35,9 +50,7 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
 
     public void onScanStarted() {
         handler.post(() -> {
-            musicFiles.clear();
-            adapter.updateList(musicFiles);
-            activity.checkEmptyState();
+            // Keep showing the current library while the scan runs
             if (!swipeRefresh.isRefreshing()) {
                 swipeRefresh.setRefreshing(true);
             }
@@ -45,6 +58,64 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
     }
 
     public void onFileFound(MusicFile file) {
+        synchronized (pendingLock) {
+            pending.add(file);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        long delay = Math.max(0, lastFlushTime + FLUSH_INTERVAL_MS - SystemClock.uptimeMillis());
+        handler.postDelayed(flushRunnable, delay);
+    }
+
+    /**
+     * Merges the tracks found since the last flush into the shown list. Tracks
+     * already shown (e.g. from the startup snapshot) are skipped, new ones are
+     * inserted at their sorted position so the list does not jump around.
+     */
+    private void flushPending() {
+        List<MusicFile> batch;
+        synchronized (pendingLock) {
+            batch = pending;
+            pending = new ArrayList<>();
+            flushScheduled = false;
+        }
+        lastFlushTime = SystemClock.uptimeMillis();
+
+        if (shownPaths == null) {
+            shownPaths = new HashSet<>();
+            for (MusicFile f : musicFiles) {
+                shownPaths.add(f.getPath());
+            }
+        }
+
+        boolean wasEmpty = musicFiles.isEmpty();
+        int added = 0;
+        for (MusicFile file : batch) {
+            if (!shownPaths.add(file.getPath())) {
+                continue;
+            }
+            int pos = Collections.binarySearch(musicFiles, file, MusicScanner.TITLE_ORDER);
+            musicFiles.add(pos < 0 ? -pos - 1 : pos, file);
+            added++;
+        }
+
+        if (added > 0) {
+            adapter.refresh();
+            if (wasEmpty) {
+                activity.checkEmptyState();
+            }
+        }
+    }
+
+    private void dropPending() {
+        synchronized (pendingLock) {
+            pending = new ArrayList<>();
+            flushScheduled = false;
+        }
+        handler.removeCallbacks(flushRunnable);
+        shownPaths = null;
     }
 
     public void onScanCompleted(List<MusicFile> files) {
@@ -52,10 +123,14 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
     }
 
     private void handleScanCompletion(List<MusicFile> files) {
-        musicFiles.clear();
-        musicFiles.addAll(files);
-        adapter.updateList(musicFiles);
-        activity.checkEmptyState();
+        dropPending();
+        boolean changed = !isSameLibrary(musicFiles, files);
+        if (changed) {
+            musicFiles.clear();
+            musicFiles.addAll(files);
+            adapter.updateList(musicFiles);
+            activity.checkEmptyState();
+        }
 
         swipeRefresh.setRefreshing(false);
 
@@ -66,7 +141,28 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
             fileLogger.e(TAG, "No audio files found in directory");
         }
 
-        activity.updatePlaylist();
+        if (changed) {
+            activity.updatePlaylist();
+        }
+    }
+
+    /**
+     * True if the scan found exactly what is already shown, in the same order
+     * and with the same metadata, so the list and playlist can be left alone.
+     */
+    private static boolean isSameLibrary(List<MusicFile> current, List<MusicFile> scanned) {
+        if (current.size() != scanned.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            MusicFile a = current.get(i);
+            MusicFile b = scanned.get(i);
+            // Same TrackStore row means same path and same metadata
+            if (a.getId() != b.getId()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void onScanError(String error) {
@@ -74,6 +170,7 @@ public class ScanResultHandler implements MusicScanner.ScanListener {
     }
 
     private void handleScanError(String error) {
+        dropPending();
         swipeRefresh.setRefreshing(false);
         fileLogger.e(TAG, "ERROR: Scan failed - " + error);
         Toast.makeText(activity, "Scan failed: " + error, Toast.LENGTH_SHORT).show();
@@ -13,6 +13,8 @@ import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -27,6 +29,9 @@ import com.music.player.utils.BitmapCache;
 import com.music.player.utils.Constant;
 import com.music.player.R;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class MediaNotificationManager {
     public static final String CHANNEL_ID = "MusicPlayerChannel";
     public static final int NOTIFICATION_ID = 1;
@@ -35,6 +40,18 @@ public class MediaNotificationManager {
     private final NotificationManager notificationManager;
     private MediaSessionCompat mediaSession;
 
+    // Art missing from memory is loaded here; the notification is rebuilt once it is in
+    private final ExecutorService artExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Track whose art is being loaded, or was found to have none; main thread only
+    private String artRequestedPath;
+    private MusicFile shownMusic;
+    private boolean shownPlaying;
+    // Zoomed large icon and the art it was made from, rebuilt only when the art changes
+    private Bitmap iconSource;
+    private Bitmap icon;
+    private Bitmap defaultArt;
+
     public MediaNotificationManager(MusicService service) {
         this.service = service;
         this.notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -82,15 +99,16 @@ public class MediaNotificationManager {
         String title = music != null ? music.getTitle() : Constant.NO_SONG;
         String artist = music != null ? music.getArtist() : Constant.EMPTY_STRING;
 
-        Bitmap art = null;
-        if (music != null) {
-            art = BitmapCache.getInstance().getBitmapFromMemCache(music.getPath());
-            if (art == null) {
-                art = AlbumArtManager.getInstance(service).loadAlbumArt(music.getPath());
-                if (art != null) BitmapCache.getInstance().addBitmapToMemoryCache(music.getPath(), art);
-            }
-        }
+        shownMusic = music;
+        shownPlaying = isPlaying;
+        // Memory only: this runs on the main thread, every second while playing
+        Bitmap art = cachedArt(music);
+        if (art == null && music != null) requestArt(music);
         if (art == null) art = getDefaultAlbumArt();
+        if (art != iconSource) {
+            iconSource = art;
+            icon = art != null ? zoomIn(art, Constant.NOTIFICATION_IMG_ZOOM) : null;
+        }
 
         Intent intent = new Intent(service, MainActivity.class);
         PendingIntent contentIntent = PendingIntent.getActivity(service, 0, intent,
@@ -101,7 +119,7 @@ public class MediaNotificationManager {
                 .setContentText(artist)
                 .setSmallIcon(android.R.drawable.ic_media_play)
                 .setContentIntent(contentIntent)
-                .setLargeIcon(art != null ? zoomIn(art, Constant.NOTIFICATION_IMG_ZOOM) : null)
+                .setLargeIcon(icon)
                 .addAction(R.drawable.ic_notification_prev_black, "Prev", getActionIntent(MusicService.ACTION_PREV))
                 .addAction(isPlaying ? R.drawable.ic_notification_pause_black : R.drawable.ic_notification_play_black,
                         isPlaying ? "Pause" : "Play", getActionIntent(isPlaying ? MusicService.ACTION_PAUSE : MusicService.ACTION_PLAY))
@@ -115,9 +133,38 @@ public class MediaNotificationManager {
         return builder.build();
     }
 
+    private Bitmap cachedArt(MusicFile music) {
+        if (music == null) return null;
+        return BitmapCache.getInstance(service).getBitmapFromMemCache(
+                AlbumArtManager.getInstance(service).cacheKeyFor(music.getPath()),
+                AlbumArtManager.Variant.FULL.getMaxPx());
+    }
+
+    /** Loads the art of {@code music} off the main thread, then refreshes what shows it. */
+    private void requestArt(MusicFile music) {
+        final String path = music.getPath();
+        if (path.equals(artRequestedPath)) return;
+        artRequestedPath = path;
+        artExecutor.execute(() -> {
+            AlbumArtManager artManager = AlbumArtManager.getInstance(service);
+            Bitmap art = BitmapCache.getInstance(service).loadBitmap(
+                    artManager.getArtKey(path),
+                    AlbumArtManager.Variant.FULL.getMaxPx(),
+                    artManager.getAlbumArtFile(path));
+            if (art == null) return; // no art: keep the default, don't ask again
+            mainHandler.post(() -> {
+                if (path.equals(artRequestedPath)) artRequestedPath = null;
+                if (shownMusic != null && path.equals(shownMusic.getPath())) {
+                    updateMetadata(shownMusic);
+                    updateNotification(shownMusic, shownPlaying);
+                }
+            });
+        });
+    }
+
     public void updateMetadata(MusicFile music) {
         if (music == null) return;
-        Bitmap art = BitmapCache.getInstance().getBitmapFromMemCache(music.getPath());
+        Bitmap art = cachedArt(music);
         MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, music.getTitle())
                 .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, music.getArtist())
@@ -143,14 +190,15 @@ public class MediaNotificationManager {
     }
 
     private Bitmap getDefaultAlbumArt() {
+        if (defaultArt != null) return defaultArt;
         Drawable d = ContextCompat.getDrawable(service, R.mipmap.ic_launcher);
-        if (d instanceof BitmapDrawable) return ((BitmapDrawable) d).getBitmap();
+        if (d instanceof BitmapDrawable) return defaultArt = ((BitmapDrawable) d).getBitmap();
         if (d == null) return null;
         Bitmap b = Bitmap.createBitmap(d.getIntrinsicWidth(), d.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
         Canvas c = new Canvas(b);
         d.setBounds(0, 0, c.getWidth(), c.getHeight());
         d.draw(c);
-        return b;
+        return defaultArt = b;
     }
 
     private Bitmap zoomIn(Bitmap src, float zoom) {
@@ -161,6 +209,8 @@ public class MediaNotificationManager {
     }
 
     public void release() {
+        artExecutor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
         mediaSession.release();
     }
 }
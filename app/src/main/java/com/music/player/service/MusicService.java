@@ -14,6 +14,7 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import java.util.ArrayList;
 import java.util.List;
 
 public class MusicService extends Service {
@@ -28,7 +29,6 @@ public class MusicService extends Service {
 
     private final IBinder binder = new MusicBinder();
     private PlayerController player;
-    private Handler autoNextHandler;
     private Handler notificationUpdateHandler;
 
     private FileLogger fileLogger;
@@ -36,6 +36,7 @@ public class MusicService extends Service {
     private MusicFile currentPlayingMusic = null;
     private MusicServiceListener listener;
     private MediaNotificationManager notificationManager;
+    private ArtPrefetcher artPrefetcher;
 
     public interface MusicServiceListener {
         void onMusicChanged(MusicFile musicFile, int index);
@@ -51,14 +52,13 @@ public class MusicService extends Service {
     public void onCreate() {
         super.onCreate();
         fileLogger = FileLogger.getInstance(this);
-        player = new PlayerController();
+        player = new PlayerController(fileLogger);
+        player.setEventListener(playbackEvents);
+        PlayerController.setCrossfadeDuration(new ConfigManager(this).getCrossfadeSeconds() * 1000);
         playlistManager = new PlaylistManager();
-        autoNextHandler = new Handler(Looper.getMainLooper());
         notificationUpdateHandler = new Handler(Looper.getMainLooper());
         notificationManager = new MediaNotificationManager(this);
-
-        startAutoNextMonitoring();
-        startNotificationUpdater();
+        artPrefetcher = new ArtPrefetcher(this);
     }
 
     @Override
@@ -87,22 +87,51 @@ public class MusicService extends Service {
     @Override
     public IBinder onBind(Intent intent) { return binder; }
 
-    private void startNotificationUpdater() {
-        notificationUpdateHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (player.isPlaying()) {
-                    notificationManager.updatePlaybackState(true, player.getCurrentPosition());
-                    notificationManager.updateNotification(currentPlayingMusic, true);
-                }
+    // Runs only while playing, so an idle service never wakes the main thread
+    private final Runnable notificationUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (player.isPlaying()) {
+                notificationManager.updatePlaybackState(true, player.getCurrentPosition());
+                notificationManager.updateNotification(currentPlayingMusic, true);
                 notificationUpdateHandler.postDelayed(this, 1000);
             }
-        }, 1000);
+        }
+    };
+
+    private void startNotificationUpdater() {
+        notificationUpdateHandler.removeCallbacks(notificationUpdater);
+        notificationUpdateHandler.postDelayed(notificationUpdater, 1000);
+    }
+
+    private void stopNotificationUpdater() {
+        notificationUpdateHandler.removeCallbacks(notificationUpdater);
     }
 
+    private final PlayerController.PlaybackEventListener playbackEvents = new PlayerController.PlaybackEventListener() {
+        @Override
+        public void onTrackEnded() {
+            checkAndPlayNext();
+        }
+
+        @Override
+        public void onMarkerReached(int positionMs) {
+            fileLogger.i(TAG, "Marker reached at " + positionMs + " ms");
+        }
+
+        @Override
+        public void onPlaybackError(int errorCode) {
+            fileLogger.e(TAG, "Playback error " + errorCode + " on " + currentPlayingMusic);
+            if (errorCode == PlayerController.ERROR_SETUP && listener != null) {
+                listener.onPlayStateChanged(false);
+            }
+        }
+    };
+
     public void setPlaylist(List<MusicFile> files) {
         playlistManager.setPlaylist(files);
         if (currentPlayingMusic != null) playlistManager.setCurrentMusic(currentPlayingMusic);
+        prepareNextTrack();
     }
 
     public void loadAndPlay(MusicFile musicFile) {
@@ -114,8 +143,13 @@ public class MusicService extends Service {
     }
 
     private void loadMusic(MusicFile musicFile) {
-        currentPlayingMusic = musicFile;
         player.load(musicFile.getPath());
+        onTrackStarted(musicFile);
+    }
+
+    /** Everything that follows a track change, whether loaded or handed off gaplessly. */
+    private void onTrackStarted(MusicFile musicFile) {
+        currentPlayingMusic = musicFile;
         syncPlayerLoopMode();
 
         notificationManager.updateMetadata(musicFile);
@@ -125,6 +159,33 @@ public class MusicService extends Service {
         if (listener != null) {
             listener.onMusicChanged(musicFile, playlistManager.getCurrentIndex());
         }
+        prefetchNeighbourArt();
+        prepareNextTrack();
+    }
+
+    /**
+     * Primes the track that will follow automatically, so it starts without a
+     * gap. Tracks only follow each other by themselves in repeat-all mode.
+     */
+    private void prepareNextTrack() {
+        if (!player.isReady()) return;
+        MusicFile next = playlistManager.getRepeatMode() == PlaylistManager.RepeatMode.ALL
+                ? playlistManager.peekNextMusic() : null;
+        if (next == null || next.equals(currentPlayingMusic)) {
+            player.clearNext();
+        } else {
+            player.prepareNext(next.getPath());
+        }
+    }
+
+    /** Warms the full-size art of the tracks next/previous would switch to. */
+    private void prefetchNeighbourArt() {
+        List<String> paths = new ArrayList<>(2);
+        MusicFile next = playlistManager.peekNextMusic();
+        MusicFile prev = playlistManager.peekPreviousMusic();
+        if (next != null) paths.add(next.getPath());
+        if (prev != null) paths.add(prev.getPath());
+        artPrefetcher.prefetch(paths, AlbumArtManager.Variant.FULL, AlbumArtManager.Variant.FULL.getMaxPx());
     }
 
     public void play() {
@@ -132,6 +193,7 @@ public class MusicService extends Service {
             player.play();
             notificationManager.updatePlaybackState(true, player.getCurrentPosition());
             notificationManager.updateNotification(currentPlayingMusic, true);
+            startNotificationUpdater();
             if (listener != null) listener.onPlayStateChanged(true);
         }
     }
@@ -139,6 +201,7 @@ public class MusicService extends Service {
     public void pause() {
         if (player.isReady()) {
             player.pause();
+            stopNotificationUpdater();
             notificationManager.updatePlaybackState(false, player.getCurrentPosition());
             notificationManager.updateNotification(currentPlayingMusic, false);
             if (listener != null) listener.onPlayStateChanged(false);
@@ -148,6 +211,7 @@ public class MusicService extends Service {
     public void stop() {
         if (player.isReady()) {
             player.stop();
+            stopNotificationUpdater();
             notificationManager.updatePlaybackState(false, 0);
             notificationManager.updateNotification(currentPlayingMusic, false);
             if (listener != null) listener.onPlayStateChanged(false);
@@ -181,11 +245,13 @@ public class MusicService extends Service {
     public void toggleShuffle() {
         playlistManager.toggleShuffle();
         if (currentPlayingMusic != null) playlistManager.setCurrentMusic(currentPlayingMusic);
+        prepareNextTrack();
     }
 
     public void cycleRepeatMode() {
         playlistManager.cycleRepeatMode();
         syncPlayerLoopMode();
+        prepareNextTrack();
     }
 
     public boolean isShuffleEnabled() { return playlistManager.isShuffleEnabled(); }
@@ -203,17 +269,14 @@ public class MusicService extends Service {
         notificationManager.updateNotification(currentPlayingMusic, player.isPlaying());
     }
 
-    private void startAutoNextMonitoring() {
-        autoNextHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                checkAndPlayNext();
-                autoNextHandler.postDelayed(this, 500);
-            }
-        }, 500);
-    }
-
     private void checkAndPlayNext() {
+        if (player.advanceIfHandedOff()) {
+            // The primed next track already took over in the native callback
+            MusicFile next = playlistManager.getNextMusic();
+            if (next != null) onTrackStarted(next);
+            startNotificationUpdater();
+            return;
+        }
         if (!player.isReady() || player.isPlaying() || !player.isFinished()) return;
         if (listener != null) listener.onMusicFinished();
         if (playlistManager.getRepeatMode() == PlaylistManager.RepeatMode.ALL) playNext();
@@ -222,9 +285,11 @@ public class MusicService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        autoNextHandler.removeCallbacksAndMessages(null);
+        player.setEventListener(null);
         notificationUpdateHandler.removeCallbacksAndMessages(null);
+        artPrefetcher.cancel();
         player.release();
+        PlayerController.shutdownEngine();
         notificationManager.release();
         stopForeground(true);
     }
@@ -26,23 +26,31 @@ import android.text.style.ForegroundColorSpan;
 import android.text.TextWatcher;
 import android.text.Editable;
 import android.os.Looper;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.*;
 import android.text.SpannableStringBuilder;
 import android.app.AlertDialog;
 import android.view.Window;
 import android.view.inputmethod.InputMethodManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import com.j256.simplemagic.ContentInfo;
 import com.j256.simplemagic.ContentInfoUtil;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 public class MainActivity extends Activity
-        implements MusicService.MusicServiceListener, PlaybackUIController.MusicServiceWrapper {
+        implements MusicService.MusicServiceListener, PlaybackUIController.MusicServiceWrapper,
+        LibraryWatcher.Listener {
     final static String TAG = "MainActivity";
-    private ListView lvMusicFiles;
+    private RecyclerView lvMusicFiles;
     private SwipeRefreshLayout swipeRefreshLayout;
     private View llEmptySearch;
 
@@ -58,6 +66,16 @@ public class MainActivity extends Activity
     private MusicFile currentMusic;
 
     private PlaybackUIController uiController;
+    private LibraryWatcher libraryWatcher;
+
+    // Typing is coalesced: a search starts once input pauses this long
+    private static final long SEARCH_DEBOUNCE_MS = 120;
+    private static final long SEARCH_LATENCY_TARGET_MS = 200;
+    private String pendingQuery = Constant.EMPTY_STRING;
+    private final Runnable searchRunnable = () -> adapter.filter(pendingQuery);
+    // Last keystroke not yet reflected on screen, 0 when none
+    private long searchKeystrokeAt = 0;
+    private LatencyTracker searchLatency;
 
     @Override
     public MusicService getService() {
@@ -78,6 +96,8 @@ public class MainActivity extends Activity
         mainHandler = new Handler(Looper.getMainLooper());
         musicFiles = new ArrayList<MusicFile>();
         fileLogger = FileLogger.getInstance(this);
+        searchLatency = new LatencyTracker(fileLogger, TAG, "Search keystroke-to-frame", 50,
+                SEARCH_LATENCY_TARGET_MS);
         configManager = new ConfigManager(this);
 
         uiController = new PlaybackUIController(this, this);
@@ -86,16 +106,15 @@ public class MainActivity extends Activity
         checkPermissions();
         bindMusicService();
 
-        if (configManager.isAutoScan()) {
-            mainHandler.postDelayed(() -> {
-                scanDirectory();
-            }, 1000);
-        }
+        loadLibrarySnapshot();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        MusicScanner.cancelScan();
+        stopLibraryWatcher();
+        fileLogger.i(TAG, BitmapCache.getInstance().getPool().toString());
         if (isBound) {
             musicService.setListener(null);
             unbindService(serviceConnection);
@@ -121,6 +140,8 @@ public class MainActivity extends Activity
                 // Toggle OFF: Hide search bar
                 etSearch.setVisibility(View.GONE);
                 etSearch.setText(Constant.EMPTY_STRING);
+                mainHandler.removeCallbacks(searchRunnable);
+                searchKeystrokeAt = 0;
                 adapter.filter(Constant.EMPTY_STRING);
                 checkEmptyState();
                 if (imm != null)
@@ -146,8 +167,7 @@ public class MainActivity extends Activity
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                adapter.filter(s.toString());
-                checkEmptyState();
+                onSearchInput(s.toString());
             }
 
             @Override
@@ -156,10 +176,33 @@ public class MainActivity extends Activity
         });
     }
 
+    private void onSearchInput(String query) {
+        pendingQuery = query;
+        searchKeystrokeAt = System.nanoTime() / 1000000; // frame times share this clock
+        mainHandler.removeCallbacks(searchRunnable);
+        if (query.trim().isEmpty()) {
+            searchRunnable.run(); // clearing the search needs no waiting
+        } else {
+            mainHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+        }
+    }
+
+    /** After a list is applied: update the empty state, time pending search input. */
+    private void onListCommitted() {
+        checkEmptyState();
+        if (searchKeystrokeAt == 0 || !pendingQuery.equals(adapter.getQuery())) {
+            return;
+        }
+        final long keystrokeAt = searchKeystrokeAt;
+        searchKeystrokeAt = 0;
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos ->
+                searchLatency.record(frameTimeNanos / 1000000 - keystrokeAt));
+    }
+
     public void checkEmptyState() {
         if (llEmptySearch == null || adapter == null)
             return;
-        if (adapter.getCount() == 0) {
+        if (adapter.getItemCount() == 0) {
             llEmptySearch.setVisibility(View.VISIBLE);
         } else {
             llEmptySearch.setVisibility(View.GONE);
@@ -168,15 +211,21 @@ public class MainActivity extends Activity
 
     private void setupListView() {
         adapter = new MusicFileAdapter(this, musicFiles);
+        lvMusicFiles.setLayoutManager(new LinearLayoutManager(this));
         lvMusicFiles.setAdapter(adapter);
 
-        lvMusicFiles.setOnItemClickListener((parent, view, position, id) -> {
-            loadMusic((MusicFile) adapter.getItem(position));
-        });
+        // Lists are applied asynchronously, the row count is final only now
+        adapter.setOnListCommittedListener(this::onListCommitted);
+        adapter.setOnItemClickListener(new MusicFileAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(MusicFile music) {
+                loadMusic(music);
+            }
 
-        lvMusicFiles.setOnItemLongClickListener((parent, view, position, id) -> {
-            showMusicInfoDialog((MusicFile) adapter.getItem(position));
-            return true;
+            @Override
+            public void onItemLongClick(MusicFile music) {
+                showMusicInfoDialog(music);
+            }
         });
     }
 
@@ -192,6 +241,9 @@ public class MainActivity extends Activity
             musicService = ((MusicService.MusicBinder) service).getService();
             musicService.setListener(MainActivity.this);
             isBound = true;
+            if (!musicFiles.isEmpty()) {
+                updatePlaylist();
+            }
             updateUIFromService();
         }
 
@@ -217,6 +269,83 @@ public class MainActivity extends Activity
         uiController.updateUI(currentMusic, musicService.isPlaying());
     }
 
+    /**
+     * Shows the library from the last completed scan straight away, then starts
+     * the auto scan (if enabled) to reconcile it with what is on disk.
+     */
+    private void loadLibrarySnapshot() {
+        String dirPath = configManager.getMusicDir();
+        if (dirPath.isEmpty()) {
+            return;
+        }
+
+        new Thread(() -> {
+            List<MusicFile> cached = MusicScanner.loadCachedLibrary(this, dirPath);
+            mainHandler.post(() -> {
+                if (isFinishing()) {
+                    return;
+                }
+                if (musicFiles.isEmpty() && !cached.isEmpty()) {
+                    musicFiles.addAll(cached);
+                    adapter.updateList(musicFiles);
+                    checkEmptyState();
+                    updatePlaylist();
+                }
+                if (configManager.isAutoScan()) {
+                    scanDirectory();
+                }
+                startLibraryWatcher();
+            });
+        }).start();
+    }
+
+    private void startLibraryWatcher() {
+        String dirPath = configManager.getMusicDir();
+        if (libraryWatcher != null) {
+            if (libraryWatcher.getRootDir().equals(new File(dirPath).getAbsolutePath())) {
+                return;
+            }
+            stopLibraryWatcher();
+        }
+        if (dirPath.isEmpty() || isFinishing()) {
+            return;
+        }
+        libraryWatcher = new LibraryWatcher(this, dirPath, this);
+        libraryWatcher.start();
+    }
+
+    private void stopLibraryWatcher() {
+        if (libraryWatcher != null) {
+            libraryWatcher.stop();
+            libraryWatcher = null;
+        }
+    }
+
+    /**
+     * Applies an incremental update from the library watcher: removed tracks
+     * are dropped, added or re-tagged ones are (re)inserted in sorted position.
+     */
+    @Override
+    public void onLibraryChanged(List<MusicFile> added, List<String> removedPaths) {
+        Set<String> gone = new HashSet<>(removedPaths);
+        for (MusicFile music : added) {
+            gone.add(music.getPath());
+        }
+        Iterator<MusicFile> it = musicFiles.iterator();
+        while (it.hasNext()) {
+            if (gone.contains(it.next().getPath())) {
+                it.remove();
+            }
+        }
+        for (MusicFile music : added) {
+            int pos = Collections.binarySearch(musicFiles, music, MusicScanner.TITLE_ORDER);
+            musicFiles.add(pos < 0 ? -pos - 1 : pos, music);
+        }
+        adapter.refresh();
+        checkEmptyState();
+        updatePlaylist();
+    }
+
     private void scanDirectory() {
         String dirPath = configManager.getMusicDir();
         if (dirPath.isEmpty()) {
@@ -253,6 +382,10 @@ public class MainActivity extends Activity
     protected void onResume() {
         super.onResume();
         configManager.loadConfig();
+        if (libraryWatcher != null) {
+            // Follows a music_dir change made in the settings screen
+            startLibraryWatcher();
+        }
         if (isBound) {
             updateUIFromService();
         }
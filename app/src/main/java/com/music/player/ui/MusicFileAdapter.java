@@ -12,95 +12,261 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class MusicFileAdapter extends BaseAdapter {
+public class MusicFileAdapter extends RecyclerView.Adapter<MusicFileAdapter.ViewHolder> {
+
+    public interface OnItemClickListener {
+        void onItemClick(MusicFile music);
+
+        void onItemLongClick(MusicFile music);
+    }
 
     private Context context;
     private List<MusicFile> allMusicFiles;
-    private List<MusicFile> filteredMusicFiles;
     private LayoutInflater inflater;
     private BitmapCache bitmapCache;
     private AlbumArtManager artManager;
+    private MusicMetadataCache metaCache;
+
+    // Shown list; new lists are diffed off the main thread, only changed rows rebind
+    private final AsyncListDiffer<MusicFile> differ;
+    private OnItemClickListener clickListener;
+    private Runnable onListCommitted;
 
-    private ExecutorService executorService;
+    private ThreadPoolExecutor executorService;
+
+    // Index building and searching run here, in submission order
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private SearchIndex searchIndex;
+    // Library to index next, set while a rebuild is queued
+    private final AtomicReference<List<MusicFile>> indexSnapshot = new AtomicReference<>();
+    private String lastQuery;
+    private int[] lastMatches;
+    // Written on the main thread only; bumped whenever the list to show changes,
+    // which cancels searches still running for the old one
+    private volatile int searchGeneration = 0;
+    // Memory-cache key -> queued or running load, main thread only
+    private final Map<String, ArtRequest> inFlight = new HashMap<>();
     private Handler mainHandler;
     private FileLogger fileLogger;
     private final String TAG = "MusicFileAdapter";
     private String playingPath = Constant.EMPTY_STRING;
+    private String currentQuery = Constant.EMPTY_STRING;
+    private final int artPx;
+
+    // Size of imgAlbumArt in item_music.xml
+    private static final int ROW_ART_DP = 56;
+    // Rows ahead of the scroll direction whose art is warmed before they show
+    private static final int PREFETCH_ROWS = 12;
+    // Search shows the best matches only, ranked by relevance
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    // Full-text hits read from the database and merged into the ranked candidates
+    private static final int FTS_CANDIDATE_LIMIT = 2000;
+    // Partial rebind of a row whose playing state changed
+    private static final Object PAYLOAD_PLAYING = new Object();
+
+    private final ArtPrefetcher prefetcher;
+    private int lastBoundPosition = -1;
+
+    private static final DiffUtil.ItemCallback<MusicFile> DIFF_CALLBACK = new DiffUtil.ItemCallback<MusicFile>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull MusicFile oldItem, @NonNull MusicFile newItem) {
+            return TextUtils.equals(oldItem.getPath(), newItem.getPath());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MusicFile oldItem, @NonNull MusicFile newItem) {
+            // TrackStore rows are immutable: same row, same metadata
+            return oldItem.getId() == newItem.getId();
+        }
+    };
 
     public MusicFileAdapter(Context context, List<MusicFile> musicFiles) {
         this.context = context;
         this.allMusicFiles = musicFiles;
-        this.filteredMusicFiles = musicFiles;
         this.inflater = LayoutInflater.from(context);
-        this.bitmapCache = BitmapCache.getInstance();
+        this.bitmapCache = BitmapCache.getInstance(context);
+        this.artPx = Math.round(ROW_ART_DP * context.getResources().getDisplayMetrics().density);
         this.artManager = AlbumArtManager.getInstance(context);
+        this.metaCache = MusicMetadataCache.getInstance(context);
+        this.prefetcher = new ArtPrefetcher(context);
 
-        executorService = Executors.newFixedThreadPool(2);
+        // Newest request first: during a fling the rows now on screen were bound last
+        executorService = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+                new LifoBlockingDeque<Runnable>());
         mainHandler = new Handler(Looper.getMainLooper());
         fileLogger = FileLogger.getInstance(context);
+
+        differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+        setHasStableIds(true);
+        differ.submitList(new ArrayList<>(musicFiles));
+        rebuildIndex();
     }
 
-    public void filter(String query) {
-        if (query == null || query.trim().isEmpty()) {
-            filteredMusicFiles = allMusicFiles;
-        } else {
-            String lowerQuery = query.toLowerCase().trim();
-            java.util.List<MusicFile> filtered = new ArrayList<>();
-            for (MusicFile file : allMusicFiles) {
-                if (isFuzzyMatch(file.getTitle().toLowerCase(), lowerQuery) ||
-                        isFuzzyMatch(file.getArtist().toLowerCase(), lowerQuery) ||
-                        isFuzzyMatch(file.getAlbum().toLowerCase(), lowerQuery)) {
-                    filtered.add(file);
-                }
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        this.clickListener = listener;
+    }
+
+    /** Runs on the main thread whenever a submitted list has been applied. */
+    public void setOnListCommittedListener(Runnable listener) {
+        this.onListCommitted = listener;
+    }
+
+    private void submit(List<MusicFile> list) {
+        // The differ compares list instances, so always hand it a private copy
+        differ.submitList(list, () -> {
+            if (onListCommitted != null) {
+                onListCommitted.run();
             }
-            filteredMusicFiles = filtered;
+        });
+    }
+
+    /**
+     * Shows the tracks matching {@code query}. The search runs on the search
+     * thread against the current index; the result is applied when it is done.
+     * A newer filter or list update cancels it, even halfway through the library.
+     */
+    public void filter(String query) {
+        currentQuery = query != null ? query : Constant.EMPTY_STRING;
+        final int gen = ++searchGeneration;
+        if (currentQuery.trim().isEmpty()) {
+            submit(new ArrayList<>(allMusicFiles));
+            return;
         }
-        notifyDataSetChanged();
+        final String normalized = SearchIndex.normalize(currentQuery);
+        final SearchIndex.CancelSignal cancel = () -> gen != searchGeneration;
+        searchExecutor.execute(() -> {
+            List<MusicFile> result = runSearch(normalized, cancel);
+            if (result == null) {
+                return; // superseded
+            }
+            mainHandler.post(() -> {
+                if (gen == searchGeneration) {
+                    submit(result);
+                }
+            });
+        });
     }
 
-    private boolean isFuzzyMatch(String text, String query) {
-        if (query.length() == 0) {
-            return true;
+    public String getQuery() {
+        return currentQuery;
+    }
+
+    // Search thread only; null when cancelled
+    private List<MusicFile> runSearch(String query, SearchIndex.CancelSignal cancel) {
+        if (cancel.isCancelled()) {
+            return null;
         }
-        if (query.length() > text.length()) {
-            return false;
+        if (searchIndex == null) {
+            return new ArrayList<>();
         }
-        int textIdx = 0, queryIdx = 0;
-        while (textIdx < text.length() && queryIdx < query.length()) {
-            if (text.charAt(textIdx) == query.charAt(queryIdx)) {
-                queryIdx++;
-            }
-            textIdx++;
+        // Every query word as a subsequence of some field, in memory.
+        // Every match of "abc" also matches "ab": only re-check the last hits
+        boolean narrowing = lastQuery != null && query.startsWith(lastQuery);
+        int[] matches = searchIndex.search(query, narrowing ? lastMatches : null, cancel);
+        if (matches == null) {
+            return null;
+        }
+        lastQuery = query;
+        lastMatches = matches;
+
+        // The full-text index only adds candidates, e.g. words its tokenizer splits
+        // at punctuation; ranking decides what is shown from the union of both
+        int[] ftsMatches = searchIndex.indicesOf(metaCache.searchPaths(query, FTS_CANDIDATE_LIMIT));
+        int[] ranked = searchIndex.rank(query, SearchIndex.union(matches, ftsMatches), SEARCH_RESULT_LIMIT, cancel);
+        return ranked != null ? toTracks(ranked) : null;
+    }
+
+    private List<MusicFile> toTracks(int[] indices) {
+        List<MusicFile> result = new ArrayList<>(indices.length);
+        for (int i : indices) {
+            result.add(searchIndex.get(i));
         }
-        return queryIdx == query.length();
+        return result;
+    }
+
+    /**
+     * Rebuilds the search index from a snapshot of the library, off the UI thread.
+     * Calls made while a rebuild is still queued only replace its snapshot, so a
+     * streaming scan costs one rebuild per search-thread turn, not one per flush.
+     */
+    private void rebuildIndex() {
+        if (indexSnapshot.getAndSet(new ArrayList<>(allMusicFiles)) != null) {
+            return; // the queued rebuild will pick this snapshot up
+        }
+        searchExecutor.execute(() -> {
+            List<MusicFile> snapshot = indexSnapshot.getAndSet(null);
+            long start = System.currentTimeMillis();
+            searchIndex = new SearchIndex(snapshot, searchIndex);
+            lastQuery = null;
+            lastMatches = null;
+            fileLogger.d(TAG, "Search index built for " + snapshot.size() + " tracks in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        });
     }
 
     public void updateList(List<MusicFile> newList) {
+        this.currentQuery = Constant.EMPTY_STRING;
         this.allMusicFiles = newList;
-        this.filteredMusicFiles = newList;
-        notifyDataSetChanged();
+        searchGeneration++;
+        rebuildIndex();
+        submit(new ArrayList<>(newList));
+    }
+
+    /**
+     * Call after the backing list was modified in place (e.g. tracks streamed in
+     * by a running scan). Re-applies the active search query, if any.
+     */
+    public void refresh() {
+        rebuildIndex();
+        filter(currentQuery);
     }
 
+    /** Rebinds only the rows of the previously and newly playing track. */
     public void setPlayingPath(String path) {
-        this.playingPath = path != null ? path : Constant.EMPTY_STRING;
-        notifyDataSetChanged();
+        String newPath = path != null ? path : Constant.EMPTY_STRING;
+        if (newPath.equals(playingPath)) {
+            return;
+        }
+        String oldPath = playingPath;
+        this.playingPath = newPath;
+        List<MusicFile> list = differ.getCurrentList();
+        for (int i = 0; i < list.size(); i++) {
+            String p = list.get(i).getPath();
+            if (p.equals(oldPath) || p.equals(newPath)) {
+                notifyItemChanged(i, PAYLOAD_PLAYING);
+            }
+        }
     }
 
-    static class ViewHolder {
+    public MusicFile getItem(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
         TextView tvMusicTitle;
         TextView tvMusicArtistAndAlbum;
         TextView tvMusicInfo;
@@ -108,55 +274,119 @@ public class MusicFileAdapter extends BaseAdapter {
         View llSoundWave;
         View wave1, wave2, wave3;
         String path;
+        ArtRequest pending;
+        // Cached bitmap on imgAlbumArt, retained in the BitmapCache
+        Bitmap shownArt;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            tvMusicTitle = itemView.findViewById(R.id.tvMusicTitle);
+            tvMusicArtistAndAlbum = itemView.findViewById(R.id.tvMusicArtistAndAlbum);
+            tvMusicInfo = itemView.findViewById(R.id.tvMusicInfo);
+            imgAlbumArt = itemView.findViewById(R.id.imgAlbumArt);
+            llSoundWave = itemView.findViewById(R.id.llSoundWave);
+            wave1 = itemView.findViewById(R.id.wave1);
+            wave2 = itemView.findViewById(R.id.wave2);
+            wave3 = itemView.findViewById(R.id.wave3);
+        }
     }
 
     @Override
-    public int getCount() {
-        return filteredMusicFiles.size();
+    public int getItemCount() {
+        return differ.getCurrentList().size();
     }
 
     @Override
-    public Object getItem(int position) {
-        return filteredMusicFiles.get(position);
+    public long getItemId(int position) {
+        // Fixed per file by the TrackStore: survives re-tags, rescans and filters
+        // without the adapter keeping a map that only ever grows
+        return getItem(position).getTrackId();
     }
 
+    @NonNull
     @Override
-    public long getItemId(int position) {
-        return position;
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        final ViewHolder holder = new ViewHolder(inflater.inflate(R.layout.item_music, parent, false));
+        holder.itemView.setOnClickListener(v -> {
+            int pos = holder.getBindingAdapterPosition();
+            if (clickListener != null && pos != RecyclerView.NO_POSITION) {
+                clickListener.onItemClick(getItem(pos));
+            }
+        });
+        holder.itemView.setOnLongClickListener(v -> {
+            int pos = holder.getBindingAdapterPosition();
+            if (clickListener != null && pos != RecyclerView.NO_POSITION) {
+                clickListener.onItemLongClick(getItem(pos));
+                return true;
+            }
+            return false;
+        });
+        return holder;
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder holder;
-
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.item_music, parent, false);
-            holder = new ViewHolder();
-            holder.tvMusicTitle = convertView.findViewById(R.id.tvMusicTitle);
-            holder.tvMusicArtistAndAlbum = convertView.findViewById(R.id.tvMusicArtistAndAlbum);
-            holder.tvMusicInfo = convertView.findViewById(R.id.tvMusicInfo);
-            holder.imgAlbumArt = convertView.findViewById(R.id.imgAlbumArt);
-            holder.llSoundWave = convertView.findViewById(R.id.llSoundWave);
-            holder.wave1 = convertView.findViewById(R.id.wave1);
-            holder.wave2 = convertView.findViewById(R.id.wave2);
-            holder.wave3 = convertView.findViewById(R.id.wave3);
-            convertView.setTag(holder);
-        } else {
-            holder = (ViewHolder) convertView.getTag();
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
         }
+        bindPlayingState(holder, getItem(position).getPath().equals(playingPath));
+    }
 
-        final MusicFile music = filteredMusicFiles.get(position);
-        final ViewHolder finalHolder = holder;
-        boolean isPlaying = music.getPath().equals(playingPath);
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        final MusicFile music = getItem(position);
 
         holder.tvMusicTitle.setText(music.getTitle());
+        holder.tvMusicArtistAndAlbum.setText(music.getArtist() + " - " + music.getAlbum());
+        holder.tvMusicInfo.setText(music.getSizeFormatted() + " • " + music.getDurationFormatted());
+        bindPlayingState(holder, music.getPath().equals(playingPath));
+
+        String oldPath = holder.path;
+        holder.path = music.getPath();
+
+        String memKey = artManager.cacheKeyFor(music.getPath(), AlbumArtManager.Variant.THUMB);
+        Bitmap cachedBitmap = bitmapCache.getBitmapFromMemCache(memKey, artPx);
+        if (cachedBitmap != null) {
+            detach(holder);
+            showArt(holder, cachedBitmap);
+        } else {
+            // Only flash to placeholder when view is truly reused for a different song
+            if (oldPath == null || !oldPath.equals(music.getPath())) {
+                showArt(holder, null);
+            }
+            // Load from disk on background thread
+            loadAlbumArtAsync(memKey, music.getPath(), holder);
+        }
+        prefetchAhead(position);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        // Row left the screen: its art load is no longer needed by it, and its
+        // bitmap may go back to the pool
+        detach(holder);
+        showArt(holder, null);
+        holder.path = null;
+    }
+
+    /** Shows {@code bitmap}, or the placeholder for null, keeping the cache's view count. */
+    private void showArt(ViewHolder holder, Bitmap bitmap) {
+        bitmapCache.release(holder.shownArt);
+        bitmapCache.retain(bitmap);
+        holder.shownArt = bitmap;
+        if (bitmap != null) {
+            holder.imgAlbumArt.setImageBitmap(bitmap);
+        } else {
+            holder.imgAlbumArt.setImageResource(R.mipmap.ic_launcher);
+        }
+    }
+
+    private void bindPlayingState(ViewHolder holder, boolean isPlaying) {
         holder.tvMusicTitle.setTextColor(
                 isPlaying ? context.getResources().getColor(R.color.turqoise)
                         : context.getResources().getColor(R.color.white));
 
-        holder.tvMusicArtistAndAlbum.setText(music.getArtist() + " - " + music.getAlbum());
-        holder.tvMusicInfo.setText(music.getSizeFormatted() + " • " + music.getDurationFormatted());
-
         // Wave animation
         if (isPlaying) {
             holder.llSoundWave.setVisibility(View.VISIBLE);
@@ -167,23 +397,28 @@ public class MusicFileAdapter extends BaseAdapter {
             holder.wave2.clearAnimation();
             holder.wave3.clearAnimation();
         }
+    }
 
-        String oldPath = holder.path;
-        holder.path = music.getPath();
-
-        Bitmap cachedBitmap = bitmapCache.getBitmapFromMemCache(music.getPath());
-        if (cachedBitmap != null) {
-            holder.imgAlbumArt.setImageBitmap(cachedBitmap);
-        } else {
-            // Only flash to placeholder when view is truly reused for a different song
-            if (oldPath == null || !oldPath.equals(music.getPath())) {
-                holder.imgAlbumArt.setImageResource(R.mipmap.ic_launcher);
+    /**
+     * Binding a row next to the previously bound one means the list is scrolling
+     * that way: warm the art of the rows that come after it in that direction.
+     */
+    private void prefetchAhead(int position) {
+        int step = position - lastBoundPosition;
+        lastBoundPosition = position;
+        if (step != 1 && step != -1) {
+            return; // first layout, data change or jump, nothing to predict
+        }
+        List<MusicFile> list = differ.getCurrentList();
+        List<String> paths = new ArrayList<>(PREFETCH_ROWS);
+        for (int i = 1; i <= PREFETCH_ROWS; i++) {
+            int p = position + i * step;
+            if (p < 0 || p >= list.size()) {
+                break;
             }
-            // Load from disk on background thread
-            loadAlbumArtAsync(music.getPath(), finalHolder);
+            paths.add(list.get(p).getPath());
         }
-
-        return convertView;
+        prefetcher.prefetch(paths, AlbumArtManager.Variant.THUMB, artPx);
     }
 
     private void startWaveAnimation(ViewHolder holder) {
@@ -197,24 +432,96 @@ public class MusicFileAdapter extends BaseAdapter {
         holder.wave3.startAnimation(a3);
     }
 
-    private void loadAlbumArtAsync(final String path, final ViewHolder holder) {
-        executorService.execute(() -> {
-            try {
-                // Load from internal disk cache
-                Bitmap bitmap = artManager.loadAlbumArt(path);
+    /**
+     * Attaches {@code holder} to the load of {@code memKey}, starting one only
+     * when none is queued or running already (tracks of an album share it).
+     */
+    private void loadAlbumArtAsync(final String memKey, final String path, final ViewHolder holder) {
+        if (holder.pending != null && holder.pending.memKey.equals(memKey)) {
+            return;
+        }
+        detach(holder);
 
-                if (bitmap != null) {
-                    bitmapCache.addBitmapToMemoryCache(path, bitmap);
+        ArtRequest request = inFlight.get(memKey);
+        if (request == null) {
+            request = new ArtRequest(memKey, path);
+            inFlight.put(memKey, request);
+            executorService.execute(request);
+        }
+        request.holders.add(holder);
+        holder.pending = request;
+    }
 
-                    mainHandler.post(() -> {
-                        if (holder.path != null && holder.path.equals(path)) {
-                            holder.imgAlbumArt.setImageBitmap(bitmap);
-                        }
-                    });
+    /** Drops the holder's interest in its pending load, cancelling it if nobody else waits. */
+    private void detach(ViewHolder holder) {
+        ArtRequest request = holder.pending;
+        if (request == null) {
+            return;
+        }
+        holder.pending = null;
+        request.holders.remove(holder);
+        if (request.holders.isEmpty()) {
+            request.cancelled = true;
+            inFlight.remove(request.memKey);
+            executorService.remove(request);
+        }
+    }
+
+    private class ArtRequest implements Runnable {
+        final String memKey;
+        final String path;
+        // Rows waiting for this bitmap, main thread only
+        final List<ViewHolder> holders = new ArrayList<>();
+        volatile boolean cancelled = false;
+
+        ArtRequest(String memKey, String path) {
+            this.memKey = memKey;
+            this.path = path;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                String key = artManager.getCacheKey(path, AlbumArtManager.Variant.THUMB);
+                if (key != null && !cancelled) {
+                    bitmap = bitmapCache.loadBitmap(key, artPx,
+                            artManager.getAlbumArtFile(path, AlbumArtManager.Variant.THUMB));
                 }
             } catch (Exception e) {
                 fileLogger.e(TAG, "loadAlbumArtAsync error: " + e.getMessage());
             }
-        });
+
+            final Bitmap result = bitmap;
+            mainHandler.post(() -> {
+                if (inFlight.get(memKey) == this) {
+                    inFlight.remove(memKey);
+                }
+                // Evicted on the way here it may already be pooled and reused: load again
+                boolean stale = result != null && bitmapCache.getBitmapFromMemCache(memKey, artPx) != result;
+                for (ViewHolder holder : holders) {
+                    if (holder.pending == this) {
+                        holder.pending = null;
+                        if (stale) {
+                            loadAlbumArtAsync(memKey, path, holder);
+                        } else if (result != null) {
+                            showArt(holder, result);
+                        }
+                    }
+                }
+                holders.clear();
+            });
+        }
+    }
+
+    /** Queue handing out the most recently added task first. */
+    private static class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+        @Override
+        public boolean offer(E e) {
+            return offerFirst(e);
+        }
     }
 }
@@ -229,12 +229,9 @@ public class PlaybackUIController {
             tvTotalTime.setText(formatDuration(currentMusic.getDuration()));
             seekBar.setMax((int) currentMusic.getDuration());
             loadAlbumArtAsync(currentMusic);
-            pcmSource.setPositionProvider(() -> serviceWrapper.isBound() ? serviceWrapper.getService().getCurrentPosition() : 0L);
-            pcmSource.start(currentMusic.getPath());
             if (visualizerView != null) visualizerView.setPcmSource(pcmSource);
         } else {
             tvSongTitle.setText(Constant.NO_SONG);
-            pcmSource.stop();
         }
         updatePlayState(isPlaying);
         updateShuffleButton();
@@ -258,7 +255,6 @@ public class PlaybackUIController {
             btnPlayPause.setImageResource(R.drawable.ic_play);
             seekbarUpdateHandler.removeCallbacks(updateSeekBarRunnable);
         }
-        pcmSource.setPaused(!isPlaying);
         if (visualizerView != null) visualizerView.setPlaying(isPlaying);
         enableControls(serviceWrapper.isBound() && serviceWrapper.getService().isReady());
     }
@@ -326,7 +322,10 @@ public class PlaybackUIController {
     };
 
     private void loadAlbumArtAsync(final MusicFile musicFile) {
-        Bitmap cached = BitmapCache.getInstance().getBitmapFromMemCache(musicFile.getPath());
+        AlbumArtManager artManager = AlbumArtManager.getInstance(activity);
+        final int artPx = AlbumArtManager.Variant.FULL.getMaxPx();
+        Bitmap cached = BitmapCache.getInstance(activity).getBitmapFromMemCache(
+                artManager.cacheKeyFor(musicFile.getPath()), artPx);
         if (cached != null) {
             currentAlbumArt = cached;
             if (ivMainAlbumArt != null) ivMainAlbumArt.setImageBitmap(cached);
@@ -335,8 +334,9 @@ public class PlaybackUIController {
             return;
         }
         new Thread(() -> {
-            Bitmap bitmap = AlbumArtManager.getInstance(activity).loadAlbumArt(musicFile.getPath());
-            if (bitmap != null) BitmapCache.getInstance().addBitmapToMemoryCache(musicFile.getPath(), bitmap);
+            String key = artManager.getArtKey(musicFile.getPath());
+            Bitmap bitmap = BitmapCache.getInstance(activity).loadBitmap(key, artPx,
+                    artManager.getAlbumArtFile(musicFile.getPath()));
             final Bitmap result = bitmap;
             mainHandler.post(() -> {
                 currentAlbumArt = result;
@@ -457,7 +457,6 @@ public class PlaybackUIController {
     }
 
     public void release() {
-        pcmSource.stop();
         seekbarUpdateHandler.removeCallbacks(updateSeekBarRunnable);
     }
 
@@ -31,6 +31,9 @@ public class SettingsActivity extends Activity {
     private Spinner spLogLevel;
     private Button btnSaveSettings, btnBack, btnBrowse;
 
+    private SeekBar seekCrossfade;
+    private TextView labelCrossfade;
+
     private SeekBar seekSensitivity, seekSmoothing, seekBarCount;
     private SeekBar seekInnerRadius, seekMaxBarLen, seekDecaySpeed, seekBarWidth;
 
@@ -67,6 +70,10 @@ public class SettingsActivity extends Activity {
         btnBack = findViewById(R.id.btnBack);
         btnBrowse = findViewById(R.id.btnBrowse);
 
+        seekCrossfade = findViewById(R.id.seek_crossfade);
+        seekCrossfade.setMax(ConfigManager.MAX_CROSSFADE_SECONDS);
+        labelCrossfade = findViewById(R.id.label_crossfade);
+
         seekSensitivity = findViewById(R.id.seek_sensitivity);
         seekSmoothing = findViewById(R.id.seek_smoothing);
         seekBarCount = findViewById(R.id.seek_bar_count);
@@ -103,6 +110,11 @@ public class SettingsActivity extends Activity {
             spLogLevel.setSelection(pos);
         }
 
+        // Playback
+        int crossfade = configManager.getCrossfadeSeconds();
+        seekCrossfade.setProgress(crossfade);
+        updateCrossfadeLabel(crossfade);
+
         // Visualizer
         float sens = configManager.getVisNoiseFloor();
         seekSensitivity.setProgress((int)(sens * 10));
@@ -151,6 +163,11 @@ public class SettingsActivity extends Activity {
 
         swAutoScan.setOnCheckedChangeListener((btn, isChecked) -> updateAutoScanSwitchColor());
 
+        seekCrossfade.setOnSeekBarChangeListener(new SimpleSeekBarChangeListener() {
+            @Override public void onProgressChanged(SeekBar s, int p, boolean f) {
+                updateCrossfadeLabel(p);
+            }
+        });
         seekSensitivity.setOnSeekBarChangeListener(new SimpleSeekBarChangeListener() {
             @Override public void onProgressChanged(SeekBar s, int p, boolean f) {
                 updateSensitivityLabel(Math.max(0.1f, p / 10.0f));
@@ -190,6 +207,7 @@ public class SettingsActivity extends Activity {
         });
     }
 
+    private void updateCrossfadeLabel(int v) { labelCrossfade.setText(v == 0 ? "Crossfade: Off (gapless)" : String.format("Crossfade: %d s (repeat all only)", v)); }
     private void updateSensitivityLabel(float v) { labelSensitivity.setText(String.format("Sensitivity: %.1f", v)); }
     private void updateSmoothingLabel(float v) { labelSmoothing.setText(String.format("Smoothing: %.2f", v)); }
     private void updateBarCountLabel(int v) { labelBarCount.setText(String.format("Bar Count: %d", v)); }
@@ -203,6 +221,9 @@ public class SettingsActivity extends Activity {
         configManager.setAutoScan(swAutoScan.isChecked());
         configManager.setLogLevel(spLogLevel.getSelectedItem().toString());
 
+        configManager.setCrossfadeSeconds(seekCrossfade.getProgress());
+        PlayerController.setCrossfadeDuration(configManager.getCrossfadeSeconds() * 1000);
+
         configManager.setVisNoiseFloor(Math.max(0.1f, seekSensitivity.getProgress() / 10.0f));
         configManager.setVisSmoothing(0.10f + (seekSmoothing.getProgress() / 100.0f));
         int bars = 20 + seekBarCount.getProgress();
@@ -1,12 +1,40 @@
 package com.music.player.utils;
 
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.LruCache;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Two-tier bitmap cache. L1 is an in-memory LruCache; L2 is the album art
+ * store itself, whose THUMB variant is already a small compressed file sized
+ * for list rows, decoded with inSampleSize into a reused bitmap. Entries are
+ * keyed by source key plus requested size, so a list row and the full-screen
+ * view never share (or fight over) one bitmap.
+ */
 public class BitmapCache {
+    private static final String TAG = "BitmapCache";
+    // Larger images are not recycled through the pool
+    private static final int POOLED_MAX_PX = 256;
+
     private static BitmapCache instance;
     private LruCache<String, Bitmap> memoryCache;
 
+    // Bitmaps evicted from L1 go here and back out as inBitmap targets
+    private final BitmapPool pool = BitmapPool.getInstance();
+    // Bitmap -> number of views showing it, see retain/release. Guarded by itself.
+    private final Map<Bitmap, Integer> shownCounts = new WeakHashMap<>();
+    // Evicted while shown: pooled once the last view lets go
+    private final Set<Bitmap> evictedShown = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+
+    private FileLogger fileLogger;
+
     private BitmapCache() {
         final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
         final int cacheSize = maxMemory / 8;
@@ -16,6 +44,20 @@ public class BitmapCache {
             protected int sizeOf(String key, Bitmap bitmap) {
                 return bitmap.getByteCount() / 1024;
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (!evicted || !oldValue.isMutable()) {
+                    return;
+                }
+                // Only a bitmap whose views all released it is known to be unused;
+                // one nobody retained may still be on its way to a view
+                synchronized (shownCounts) {
+                    if (shownCounts.containsKey(oldValue)) {
+                        evictedShown.add(oldValue);
+                    }
+                }
+            }
         };
     }
 
@@ -26,6 +68,60 @@ public class BitmapCache {
         return instance;
     }
 
+    /** Same as {@link #getInstance()}, also enabling logging of failed decodes. */
+    public static synchronized BitmapCache getInstance(Context context) {
+        BitmapCache cache = getInstance();
+        if (cache.fileLogger == null) {
+            cache.fileLogger = FileLogger.getInstance(context);
+        }
+        return cache;
+    }
+
+    /**
+     * Records that a view now shows {@code bitmap}. Views showing cached bitmaps
+     * must pair this with {@link #release}, so an evicted bitmap is reused for
+     * another decode only after it left the screen. Main thread only.
+     */
+    public void retain(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (shownCounts) {
+            Integer count = shownCounts.get(bitmap);
+            shownCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /** A view stopped showing {@code bitmap}; see {@link #retain}. */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (shownCounts) {
+            Integer count = shownCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                shownCounts.put(bitmap, count - 1);
+                return;
+            }
+            shownCounts.remove(bitmap);
+            if (!evictedShown.remove(bitmap)) {
+                return;
+            }
+        }
+        pool.put(bitmap);
+    }
+
+    public BitmapPool getPool() {
+        return pool;
+    }
+
+    public static String sizedKey(String key, int reqPx) {
+        return key + "@" + reqPx;
+    }
+
     public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
         if (getBitmapFromMemCache(key) == null && key != null && bitmap != null) {
             memoryCache.put(key, bitmap);
@@ -38,4 +134,69 @@ public class BitmapCache {
         }
         return memoryCache.get(key);
     }
+
+    public Bitmap getBitmapFromMemCache(String key, int reqPx) {
+        return key != null ? getBitmapFromMemCache(sizedKey(key, reqPx)) : null;
+    }
+
+    /**
+     * Returns {@code key} at roughly {@code reqPx} (never smaller than needed):
+     * from memory, else by decoding {@code source}, the stored art variant,
+     * with inSampleSize and a reused bitmap. Must not be called on the UI thread.
+     */
+    public Bitmap loadBitmap(String key, int reqPx, File source) {
+        if (key == null) {
+            return null;
+        }
+        String sized = sizedKey(key, reqPx);
+        Bitmap bitmap = memoryCache.get(sized);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        if (source == null || !source.exists()) {
+            return null;
+        }
+        bitmap = decodeSampled(source, reqPx);
+        if (bitmap == null) {
+            if (fileLogger != null) {
+                fileLogger.w(TAG, "Could not decode " + source.getName());
+            }
+        } else {
+            memoryCache.put(sized, bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeSampled(File source, int reqPx) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getAbsolutePath(), opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight, reqPx);
+        opts.inJustDecodeBounds = false;
+        if (reqPx <= POOLED_MAX_PX) {
+            // Only thumbnails take part in reuse: large art (player, notification)
+            // stays on screen long after it may have left the LRU.
+            pool.prepareDecode(opts);
+        }
+        try {
+            return BitmapFactory.decodeFile(source.getAbsolutePath(), opts);
+        } catch (IllegalArgumentException e) {
+            // inBitmap rejected by the decoder, decode into a fresh bitmap
+            opts.inBitmap = null;
+            return BitmapFactory.decodeFile(source.getAbsolutePath(), opts);
+        }
+    }
+
+    private static int calculateInSampleSize(int width, int height, int reqPx) {
+        int inSampleSize = 1;
+        while ((width / (inSampleSize * 2)) >= reqPx && (height / (inSampleSize * 2)) >= reqPx) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
 }
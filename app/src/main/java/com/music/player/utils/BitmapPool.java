@@ -0,0 +1,150 @@
+package com.music.player.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps kept for reuse, bucketed by allocation size so a
+ * lookup only inspects bitmaps that can actually hold the requested image.
+ * Decoders get them through {@link #prepareDecode}, which sets inBitmap.
+ */
+public class BitmapPool {
+    private static BitmapPool instance;
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    // allocation bucket (bytes, next power of two) -> bitmaps in that bucket
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+
+    private int hits = 0;
+    private int misses = 0;
+    private int puts = 0;
+    private int evictions = 0;
+
+    private BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 32);
+        }
+        return instance;
+    }
+
+    private static int bucketOf(int bytes) {
+        return Integer.highestOneBit(Math.max(1, bytes - 1)) << 1;
+    }
+
+    /**
+     * Offers a bitmap that is no longer displayed. Immutable or recycled bitmaps
+     * are ignored; when the pool is full the largest-bucket bitmaps go first,
+     * oldest first within a bucket, since one of them frees the most memory.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+        int bucket = bucketOf(size);
+        ArrayDeque<Bitmap> list = buckets.get(bucket);
+        if (list == null) {
+            list = new ArrayDeque<>();
+            buckets.put(bucket, list);
+        }
+        list.push(bitmap);
+        currentBytes += size;
+        puts++;
+
+        while (currentBytes > maxBytes && !buckets.isEmpty()) {
+            Integer largest = buckets.lastKey();
+            ArrayDeque<Bitmap> victims = buckets.get(largest);
+            Bitmap victim = victims.pollLast();
+            if (victims.isEmpty()) {
+                buckets.remove(largest);
+            }
+            if (victim != null) {
+                currentBytes -= victim.getAllocationByteCount();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Sets {@code opts.inBitmap} (and inMutable) for a decode whose bounds were
+     * already read into {@code opts} with inJustDecodeBounds.
+     */
+    public void prepareDecode(BitmapFactory.Options opts) {
+        int sample = Math.max(1, opts.inSampleSize);
+        int width = (opts.outWidth + sample - 1) / sample;
+        int height = (opts.outHeight + sample - 1) / sample;
+        Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        opts.inMutable = true;
+        synchronized (this) {
+            opts.inBitmap = take(width * height * bytesPerPixel(config));
+        }
+    }
+
+    private Bitmap take(int needed) {
+        // Smallest bucket that can hold the image, skipping hopelessly large ones
+        for (Integer bucket : buckets.tailMap(bucketOf(needed), true).headMap(bucketOf(needed) * 4, false).keySet()) {
+            ArrayDeque<Bitmap> list = buckets.get(bucket);
+            for (Bitmap candidate : list) {
+                if (!candidate.isRecycled() && candidate.getAllocationByteCount() >= needed) {
+                    list.remove(candidate);
+                    if (list.isEmpty()) {
+                        buckets.remove(bucket);
+                    }
+                    currentBytes -= candidate.getAllocationByteCount();
+                    hits++;
+                    return candidate;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized int getPutCount() {
+        return puts;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getSizeBytes() {
+        return currentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[hits=" + hits + ", misses=" + misses + ", puts=" + puts
+                + ", evictions=" + evictions + ", size=" + (currentBytes / 1024) + "KB]";
+    }
+}
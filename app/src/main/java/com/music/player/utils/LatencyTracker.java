@@ -0,0 +1,44 @@
+package com.music.player.utils;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and logs p50/p99 every {@code window} samples,
+ * as a warning when p99 is above the target.
+ */
+public class LatencyTracker {
+
+    private final String tag;
+    private final String name;
+    private final long targetMs;
+    private final FileLogger fileLogger;
+    private final long[] samples;
+    private int count = 0;
+
+    public LatencyTracker(FileLogger fileLogger, String tag, String name, int window, long targetMs) {
+        this.fileLogger = fileLogger;
+        this.tag = tag;
+        this.name = name;
+        this.targetMs = targetMs;
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long ms) {
+        samples[count++] = ms;
+        if (count < samples.length) {
+            return;
+        }
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long p50 = sorted[sorted.length / 2];
+        long p99 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99) - 1)];
+        String msg = name + " latency over " + sorted.length + " samples: p50=" + p50
+                + "ms p99=" + p99 + "ms (target p99 <= " + targetMs + "ms)";
+        if (p99 > targetMs) {
+            fileLogger.w(tag, msg);
+        } else {
+            fileLogger.i(tag, msg);
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,20 @@
+#ifndef CHECK_H
+#define CHECK_H
+
+#include <stdio.h>
+
+// Minimal assertion helper for the host tests: counts failures and reports
+// them with their location instead of stopping at the first one
+static int checkFailures = 0;
+
+#define CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+        checkFailures++; \
+    } \
+} while (0)
+
+#define CHECK_DONE(name) \
+    (printf("%s: %s\n", name, checkFailures == 0 ? "OK" : "FAILED"), checkFailures == 0 ? 0 : 1)
+
+#endif // CHECK_H
@@ -0,0 +1,49 @@
+// Host benchmark for the crossfade gain ramp, kept off the audio thread.
+// Build and run with `make bench` in this directory.
+#include "crossfade.h"
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#define SAMPLE_RATE 44100
+#define CHANNELS 2
+#define BUFFER_FRAMES 1024 // RENDER_FRAMES in audio_player.h
+#define FADE_MS 12000 // PlayerController.MAX_CROSSFADE_MS
+#define ROUNDS 20
+
+static int64_t nowNs(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+int main(void) {
+    static int16_t pcm[BUFFER_FRAMES * CHANNELS];
+    uint32_t fadeFrames = (uint32_t)((int64_t)FADE_MS * SAMPLE_RATE / 1000);
+    uint32_t buffers = 0;
+    int64_t costNs = 0;
+    int64_t checksum = 0;
+
+    for (int round = 0; round < ROUNDS; round++) {
+        Fade fade;
+        fadeBegin(&fade, round % 2 == 0 ? 1 : -1, fadeFrames);
+        bool done = false;
+        while (!done) {
+            for (int i = 0; i < BUFFER_FRAMES * CHANNELS; i++) {
+                pcm[i] = (int16_t)(i * 37);
+            }
+            int64_t start = nowNs();
+            done = fadeApply(&fade, pcm, BUFFER_FRAMES, CHANNELS);
+            costNs += nowNs() - start;
+            buffers++;
+            checksum += pcm[BUFFER_FRAMES];
+        }
+    }
+
+    double bufferNs = (double)BUFFER_FRAMES * 1e9 / SAMPLE_RATE;
+    double perBufferNs = (double)costNs / buffers;
+    printf("%u buffers of %d frames: %.2f us per buffer, %.4f%% of real time (checksum %lld)\n",
+        buffers, BUFFER_FRAMES, perBufferNs / 1000.0, perBufferNs * 100.0 / bufferNs,
+        (long long)checksum);
+    return 0;
+}
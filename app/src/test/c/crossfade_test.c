@@ -0,0 +1,113 @@
+// Host test for the Q15 equal-power gain ramp in crossfade.c. Run with
+// `make test`.
+#include "crossfade.h"
+#include "check.h"
+#include <stdlib.h>
+
+#define RATE 44100 // frames per second, for sizing the ramps
+#define FULL 32767
+
+// Gain the ramp applies to each frame, read back from a full-scale signal
+static int16_t* ramp(int direction, uint32_t fadeFrames, uint32_t frames, uint32_t chunk) {
+    int16_t* pcm = (int16_t*)malloc(frames * 2 * sizeof(int16_t));
+    for (uint32_t i = 0; i < frames * 2; i++) {
+        pcm[i] = FULL;
+    }
+    Fade fade;
+    fadeBegin(&fade, direction, fadeFrames);
+    for (uint32_t at = 0; at < frames; at += chunk) {
+        uint32_t n = frames - at < chunk ? frames - at : chunk;
+        fadeApply(&fade, pcm + at * 2, n, 2);
+    }
+    return pcm;
+}
+
+static void testEndpointsAndShape(void) {
+    const uint32_t frames = RATE; // one second
+    int16_t* in = ramp(1, frames, frames + 100, 1024);
+    int16_t* out = ramp(-1, frames, frames + 100, 1024);
+
+    // Fade-in starts silent, fade-out starts at full scale
+    CHECK(in[0] == 0);
+    CHECK(out[0] >= FULL - 1);
+    // Past the ramp: full for a fade-in, silence for a fade-out
+    CHECK(in[(frames + 50) * 2] >= FULL - 1);
+    CHECK(out[(frames + 50) * 2] == 0);
+
+    bool monotonic = true;
+    bool channelsEqual = true;
+    int64_t worstPower = 0;
+    for (uint32_t f = 0; f < frames; f++) {
+        if (f > 0) {
+            monotonic = monotonic && in[f * 2] >= in[(f - 1) * 2] && out[f * 2] <= out[(f - 1) * 2];
+        }
+        channelsEqual = channelsEqual && in[f * 2] == in[f * 2 + 1];
+        // sin^2 + cos^2 == 1: the summed power stays at full scale
+        int64_t power = (int64_t)in[f * 2] * in[f * 2] + (int64_t)out[f * 2] * out[f * 2];
+        int64_t error = llabs(power - (int64_t)FULL * FULL);
+        if (error > worstPower) {
+            worstPower = error;
+        }
+    }
+    CHECK(monotonic);
+    CHECK(channelsEqual);
+    // Within 0.1% of full power, interpolation and Q15 rounding included
+    CHECK(worstPower * 1000 < (int64_t)FULL * FULL);
+
+    // Half way is -3 dB on both sides
+    int16_t mid = in[(frames / 2) * 2];
+    CHECK(abs(mid - 23170) < 40);
+    CHECK(abs(out[(frames / 2) * 2] - mid) < 40);
+    free(in);
+    free(out);
+}
+
+// Each fadeApply restarts its 16.16 position from the exact frame count,
+// within a call the truncated step drifts by at most a couple of LSB
+static void testChunkingDoesNotMatter(void) {
+    const uint32_t frames = 3000;
+    int16_t* whole = ramp(1, frames, frames, frames);
+    int16_t* pieces = ramp(1, frames, frames, 7);
+    bool same = true;
+    for (uint32_t i = 0; i < frames * 2; i++) {
+        same = same && abs(whole[i] - pieces[i]) <= 2;
+    }
+    CHECK(same);
+    free(whole);
+    free(pieces);
+}
+
+static void testCompletionAndIdle(void) {
+    int16_t pcm[2 * 100];
+    Fade fade;
+    fadeBegin(&fade, -1, 150);
+    CHECK(!fadeApply(&fade, pcm, 100, 2));
+    CHECK(fadeApply(&fade, pcm, 100, 2));
+    CHECK(fade.direction == 0);
+
+    // An idle or zero-length fade leaves the samples alone
+    for (int i = 0; i < 200; i++) {
+        pcm[i] = 1234;
+    }
+    CHECK(!fadeApply(&fade, pcm, 100, 2));
+    fadeBegin(&fade, 1, 0);
+    CHECK(fade.direction == 0);
+    CHECK(!fadeApply(&fade, pcm, 100, 2));
+    CHECK(pcm[0] == 1234 && pcm[199] == 1234);
+}
+
+static void testNegativeSamples(void) {
+    int16_t pcm[2] = { -32768, 32767 };
+    Fade fade;
+    fadeBegin(&fade, -1, 1000);
+    fadeApply(&fade, pcm, 1, 2);
+    CHECK(pcm[0] <= -32766 && pcm[1] >= 32765);
+}
+
+int main(void) {
+    testEndpointsAndShape();
+    testChunkingDoesNotMatter();
+    testCompletionAndIdle();
+    testNegativeSamples();
+    return CHECK_DONE("crossfade_test");
+}
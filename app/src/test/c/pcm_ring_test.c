@@ -0,0 +1,139 @@
+// Host test for the SPSC sample ring in pcm_ring.h, including the wrap of
+// the head and tail counters past UINT32_MAX. Run with `make test`.
+#include "pcm_ring.h"
+#include "check.h"
+#include <pthread.h>
+
+#define CAPACITY 16
+
+static void fill(int16_t* buf, uint32_t count, int16_t from) {
+    for (uint32_t i = 0; i < count; i++) {
+        buf[i] = (int16_t)(from + i);
+    }
+}
+
+static bool sequential(const int16_t* buf, uint32_t count, int16_t from) {
+    for (uint32_t i = 0; i < count; i++) {
+        if (buf[i] != (int16_t)(from + i)) {
+            return false;
+        }
+    }
+    return true;
+}
+
+static void testEmptyAndFull(void) {
+    PcmRing ring;
+    CHECK(pcmRingInit(&ring, CAPACITY));
+    int16_t in[CAPACITY + 4], out[CAPACITY + 4];
+
+    CHECK(pcmRingAvailable(&ring) == 0);
+    CHECK(pcmRingSpace(&ring) == CAPACITY);
+    CHECK(pcmRingRead(&ring, out, 4) == 0);
+
+    // A write larger than the space is cut to what fits
+    fill(in, CAPACITY + 4, 0);
+    CHECK(pcmRingWrite(&ring, in, CAPACITY + 4) == CAPACITY);
+    CHECK(pcmRingSpace(&ring) == 0);
+    CHECK(pcmRingWrite(&ring, in, 1) == 0);
+
+    CHECK(pcmRingRead(&ring, out, CAPACITY + 4) == CAPACITY);
+    CHECK(sequential(out, CAPACITY, 0));
+    CHECK(pcmRingAvailable(&ring) == 0);
+    pcmRingFree(&ring);
+}
+
+// Writes and reads in odd-sized pieces so copies split across the buffer end
+static void testPartialWrapsAround(uint32_t start) {
+    PcmRing ring;
+    CHECK(pcmRingInit(&ring, CAPACITY));
+    atomic_store(&ring.head, start);
+    atomic_store(&ring.tail, start);
+
+    int16_t in[7], out[7];
+    int16_t written = 0, read = 0;
+    for (int round = 0; round < 40; round++) {
+        fill(in, 7, written);
+        uint32_t n = pcmRingWrite(&ring, in, 7);
+        written = (int16_t)(written + n);
+        CHECK(pcmRingAvailable(&ring) + pcmRingSpace(&ring) == CAPACITY);
+
+        uint32_t want = (uint32_t)(round % 5) + 1;
+        uint32_t got = pcmRingRead(&ring, out, want);
+        CHECK(sequential(out, got, read));
+        read = (int16_t)(read + got);
+    }
+    uint32_t rest = pcmRingRead(&ring, out, 7);
+    while (rest > 0) {
+        CHECK(sequential(out, rest, read));
+        read = (int16_t)(read + rest);
+        rest = pcmRingRead(&ring, out, 7);
+    }
+    CHECK(read == written);
+    pcmRingFree(&ring);
+}
+
+static void testSkipTo(void) {
+    PcmRing ring;
+    CHECK(pcmRingInit(&ring, CAPACITY));
+    atomic_store(&ring.head, UINT32_MAX - 2);
+    atomic_store(&ring.tail, UINT32_MAX - 2);
+
+    int16_t in[10], out[10];
+    fill(in, 10, 100);
+    pcmRingWrite(&ring, in, 6);
+    uint32_t head = atomic_load(&ring.head);
+    pcmRingWrite(&ring, in + 6, 4);
+
+    // Everything before the recorded head is dropped, the rest stays
+    pcmRingSkipTo(&ring, head);
+    CHECK(pcmRingAvailable(&ring) == 4);
+    CHECK(pcmRingRead(&ring, out, 10) == 4);
+    CHECK(sequential(out, 4, 106));
+    pcmRingFree(&ring);
+}
+
+// One producer and one consumer thread move a long counting sequence
+#define STRESS_SAMPLES 4000000u
+
+static void* produce(void* arg) {
+    PcmRing* ring = (PcmRing*)arg;
+    int16_t chunk[13];
+    uint32_t sent = 0;
+    while (sent < STRESS_SAMPLES) {
+        uint32_t n = STRESS_SAMPLES - sent < 13 ? STRESS_SAMPLES - sent : 13;
+        fill(chunk, n, (int16_t)sent);
+        sent += pcmRingWrite(ring, chunk, n);
+    }
+    return NULL;
+}
+
+static void testConcurrent(void) {
+    PcmRing ring;
+    CHECK(pcmRingInit(&ring, 1024));
+    atomic_store(&ring.head, UINT32_MAX - 5000);
+    atomic_store(&ring.tail, UINT32_MAX - 5000);
+
+    pthread_t producer;
+    pthread_create(&producer, NULL, produce, &ring);
+    int16_t chunk[29];
+    uint32_t received = 0;
+    bool ordered = true;
+    while (received < STRESS_SAMPLES) {
+        uint32_t got = pcmRingRead(&ring, chunk, 29);
+        ordered = ordered && sequential(chunk, got, (int16_t)received);
+        received += got;
+    }
+    pthread_join(producer, NULL);
+    CHECK(ordered);
+    CHECK(pcmRingAvailable(&ring) == 0);
+    pcmRingFree(&ring);
+}
+
+int main(void) {
+    testEmptyAndFull();
+    testPartialWrapsAround(0);
+    testPartialWrapsAround(UINT32_MAX - 20);
+    testSkipTo();
+    testConcurrent();
+    return CHECK_DONE("pcm_ring_test");
+}
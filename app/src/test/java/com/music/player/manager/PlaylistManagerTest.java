@@ -0,0 +1,115 @@
+package com.music.player.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.music.player.model.MusicFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PlaylistManagerTest {
+
+    private PlaylistManager manager;
+    private List<MusicFile> files;
+
+    @Before
+    public void setUp() {
+        manager = new PlaylistManager();
+        files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            files.add(new MusicFile("t" + i, "/playlist/t" + i + ".mp3", 1, "T" + i, "A", "B", 1000));
+        }
+        manager.setPlaylist(files);
+    }
+
+    private void setRepeatMode(PlaylistManager.RepeatMode mode) {
+        while (manager.getRepeatMode() != mode) {
+            manager.cycleRepeatMode();
+        }
+    }
+
+    // peekNextMusic must name exactly the track getNextMusic then moves to,
+    // or the primed gapless track would not be the one played
+    private void assertPeekMatchesAdvance(int steps) {
+        for (int i = 0; i < steps; i++) {
+            MusicFile peeked = manager.peekNextMusic();
+            MusicFile next = manager.getNextMusic();
+            assertEquals(peeked, next);
+            if (next == null) {
+                return;
+            }
+            assertEquals(next, manager.getCurrentMusic());
+        }
+    }
+
+    @Test
+    public void peekMatchesAdvanceRepeatOff() {
+        manager.setCurrentMusic(files.get(0));
+        assertPeekMatchesAdvance(10);
+        assertEquals(files.get(4), manager.getCurrentMusic());
+        assertNull(manager.peekNextMusic());
+    }
+
+    @Test
+    public void peekMatchesAdvanceRepeatAllWraps() {
+        setRepeatMode(PlaylistManager.RepeatMode.ALL);
+        manager.setCurrentMusic(files.get(3));
+        assertPeekMatchesAdvance(7);
+        assertEquals(files.get(0), manager.getCurrentMusic());
+    }
+
+    @Test
+    public void peekMatchesAdvanceRepeatOne() {
+        setRepeatMode(PlaylistManager.RepeatMode.ONE);
+        manager.setCurrentMusic(files.get(2));
+        assertPeekMatchesAdvance(3);
+        assertEquals(files.get(2), manager.getCurrentMusic());
+    }
+
+    @Test
+    public void peekMatchesAdvanceShuffled() {
+        setRepeatMode(PlaylistManager.RepeatMode.ALL);
+        manager.setCurrentMusic(files.get(1));
+        manager.toggleShuffle();
+        assertEquals(files.get(1), manager.getCurrentMusic());
+        assertPeekMatchesAdvance(12);
+    }
+
+    @Test
+    public void peekDoesNotMove() {
+        manager.setCurrentMusic(files.get(1));
+        manager.peekNextMusic();
+        manager.peekPreviousMusic();
+        assertEquals(1, manager.getCurrentIndex());
+    }
+
+    @Test
+    public void peekPreviousMatchesGoingBack() {
+        setRepeatMode(PlaylistManager.RepeatMode.ALL);
+        manager.setCurrentMusic(files.get(1));
+        for (int i = 0; i < 6; i++) {
+            MusicFile peeked = manager.peekPreviousMusic();
+            assertEquals(peeked, manager.getPreviousMusic());
+        }
+    }
+
+    @Test
+    public void emptyPlaylistHasNoNext() {
+        manager.setPlaylist(new ArrayList<>());
+        assertNull(manager.peekNextMusic());
+        assertNull(manager.getNextMusic());
+    }
+
+    @Test
+    public void unshuffleRestoresLibraryOrder() {
+        manager.setCurrentMusic(files.get(2));
+        manager.toggleShuffle();
+        manager.toggleShuffle();
+        assertEquals(2, manager.getCurrentIndex());
+        assertEquals(files.get(3), manager.peekNextMusic());
+    }
+}
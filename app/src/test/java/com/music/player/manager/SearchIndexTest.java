@@ -0,0 +1,192 @@
+package com.music.player.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.music.player.model.MusicFile;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SearchIndexTest {
+
+    private static final SearchIndex.CancelSignal NEVER = () -> false;
+
+    private static MusicFile track(String title, String artist, String album) {
+        String path = "/search/" + artist + "/" + album + "/" + title + ".mp3";
+        return new MusicFile(title, path, 1, title, artist, album, 1000);
+    }
+
+    private static SearchIndex index(MusicFile... files) {
+        return new SearchIndex(Arrays.asList(files));
+    }
+
+    @Test
+    public void normalizeFoldsCaseAndAccents() {
+        assertEquals("beyonce", SearchIndex.normalize("  Beyonc\u00e9 "));
+        assertEquals("sigur ros", SearchIndex.normalize("Sigur R\u00f3s"));
+        assertEquals("", SearchIndex.normalize(null));
+    }
+
+    @Test
+    public void fieldScorePrefersContiguousAndFieldStart() {
+        int start = SearchIndex.fieldScore("hello world", "hel");
+        int wordStart = SearchIndex.fieldScore("say hello", "hel");
+        int inside = SearchIndex.fieldScore("shell", "hel");
+        int scattered = SearchIndex.fieldScore("hxexl", "hel");
+        assertTrue(start > wordStart);
+        assertTrue(wordStart > inside);
+        assertTrue(inside > scattered);
+        assertTrue(scattered > 0);
+    }
+
+    @Test
+    public void fieldScoreIsZeroWithoutMatch() {
+        assertEquals(0, SearchIndex.fieldScore("abc", "abd"));
+        assertEquals(0, SearchIndex.fieldScore("ab", "abc"));
+        assertEquals(0, SearchIndex.fieldScore("abc", ""));
+    }
+
+    @Test
+    public void searchMatchesSubsequenceInAnyField() {
+        SearchIndex index = index(
+                track("Yesterday", "Beatles", "Help"),
+                track("Nothing", "Nobody", "Nowhere"),
+                track("Song", "Artist", "Yellow Album"));
+        assertArrayEquals(new int[] { 0, 2 }, index.search("ye", null, NEVER));
+        assertArrayEquals(new int[] { 0 }, index.search("btls", null, NEVER));
+    }
+
+    @Test
+    public void searchNarrowsFromCandidates() {
+        SearchIndex index = index(
+                track("abc", "x", "x"),
+                track("abd", "x", "x"),
+                track("abc too", "x", "x"));
+        int[] ab = index.search("ab", null, NEVER);
+        assertArrayEquals(new int[] { 0, 1, 2 }, ab);
+        assertArrayEquals(new int[] { 0, 2 }, index.search("abc", ab, NEVER));
+    }
+
+    @Test
+    public void searchMatchesFileName() {
+        MusicFile untagged = new MusicFile("x", "/search/dir/Field Recording 07.ogg", 1, "", null, null, 0);
+        SearchIndex index = index(untagged);
+        assertArrayEquals(new int[] { 0 }, index.search("recording", null, NEVER));
+        assertArrayEquals(new int[0], index.search("ogg", null, NEVER));
+    }
+
+    @Test
+    public void rankOrdersByScoreThenLibraryOrder() {
+        SearchIndex index = index(
+                track("Love Shack", "B-52s", "Cosmic Thing"),   // title start
+                track("Tune", "Nobody", "Glove"),                // inside album
+                track("Tune", "Lovebirds", "Nest"),              // artist start
+                track("Love Me Do", "Beatles", "Please"));       // title start, later
+        int[] ranked = index.rank("love", new int[] { 0, 1, 2, 3 }, 10, NEVER);
+        assertArrayEquals(new int[] { 0, 3, 2, 1 }, ranked);
+    }
+
+    @Test
+    public void rankKeepsOnlyTopK() {
+        List<MusicFile> files = new ArrayList<>();
+        int[] all = new int[500];
+        for (int i = 0; i < all.length; i++) {
+            // Every 50th track matches at the start of its title, the rest inside it
+            String title = i % 50 == 0 ? "match " + i : "x match " + i;
+            files.add(track(title, "a" + i, "b" + i));
+            all[i] = i;
+        }
+        SearchIndex index = new SearchIndex(files);
+        int[] ranked = index.rank("match", all, 5, NEVER);
+        assertArrayEquals(new int[] { 0, 50, 100, 150, 200 }, ranked);
+    }
+
+    @Test
+    public void wordsMayMatchDifferentFields() {
+        SearchIndex index = index(
+                track("Time", "Pink Floyd", "Dark Side"),
+                track("Money", "Pink Floyd", "Dark Side"),
+                track("Time After Time", "Cyndi Lauper", "Fun"));
+        assertArrayEquals(new int[] { 0 }, index.search("floyd time", null, NEVER));
+        assertArrayEquals(new int[] { 0 }, index.rank("floyd time", new int[] { 0, 1, 2 }, 10, NEVER));
+    }
+
+    @Test
+    public void wordsTogetherInOneFieldRankFirst() {
+        SearchIndex index = index(
+                track("Me And Love", "Someone", "Album"),
+                track("Love Me Do", "Beatles", "Please"));
+        assertArrayEquals(new int[] { 1, 0 }, index.rank("love me", new int[] { 0, 1 }, 10, NEVER));
+    }
+
+    @Test
+    public void rankDropsCandidatesMissingAWord() {
+        SearchIndex index = index(
+                track("Alpha", "Beta", "Gamma"),
+                track("Delta", "Epsilon", "Zeta"));
+        assertArrayEquals(new int[0], index.rank("alpha zeta", new int[] { 0, 1 }, 10, NEVER));
+        assertArrayEquals(new int[] { 1 }, index.rank("zeta", new int[] { 0, 1 }, 10, NEVER));
+    }
+
+    @Test
+    public void infixMatchesSurviveNextToWordPrefixHits() {
+        SearchIndex index = index(
+                track("Glove", "Nobody", "Nothing"),
+                track("Lovely", "Somebody", "Something"));
+        int[] prefixOnly = { 1 }; // what a word-prefix index would return
+        int[] merged = SearchIndex.union(index.search("love", null, NEVER), prefixOnly);
+        assertArrayEquals(new int[] { 1, 0 }, index.rank("love", merged, 10, NEVER));
+    }
+
+    @Test
+    public void punctuationSeparatesWords() {
+        SearchIndex index = index(track("Thunderstruck", "AC-DC", "Razors Edge"));
+        assertArrayEquals(new int[] { 0 }, index.search("ac/dc", null, NEVER));
+        assertArrayEquals(new int[] { 0 }, index.rank("ac/dc", new int[] { 0 }, 10, NEVER));
+    }
+
+    @Test
+    public void unionMergesSortedAndDropsDuplicates() {
+        assertArrayEquals(new int[] { 0, 1, 3, 5, 8 },
+                SearchIndex.union(new int[] { 1, 3, 8 }, new int[] { 0, 3, 5 }));
+        assertArrayEquals(new int[] { 2 }, SearchIndex.union(new int[0], new int[] { 2 }));
+    }
+
+    @Test
+    public void rebuildFromPreviousSeesInsertedAndRetaggedTracks() {
+        MusicFile kept = track("Kept", "A", "X");
+        MusicFile before = new MusicFile("r", "/search/retag.mp3", 1, "Old Name", "B", "Y", 1);
+        SearchIndex first = index(kept, before);
+
+        MusicFile inserted = track("Inserted", "C", "Z");
+        MusicFile after = new MusicFile("r", "/search/retag.mp3", 1, "New Name", "B", "Y", 1);
+        SearchIndex second = new SearchIndex(Arrays.asList(inserted, kept, after), first);
+
+        assertArrayEquals(new int[] { 1 }, second.search("kept", null, NEVER));
+        assertArrayEquals(new int[] { 0 }, second.search("inserted", null, NEVER));
+        assertArrayEquals(new int[] { 2 }, second.search("new name", null, NEVER));
+        assertArrayEquals(new int[0], second.search("old name", null, NEVER));
+    }
+
+    @Test
+    public void cancelledSearchReturnsNull() {
+        SearchIndex index = index(track("a", "b", "c"));
+        assertNull(index.search("a", null, () -> true));
+        assertNull(index.rank("a", new int[] { 0 }, 10, () -> true));
+    }
+
+    @Test
+    public void indicesOfSkipsUnknownPathsAndSorts() {
+        MusicFile a = track("One", "A", "X");
+        MusicFile b = track("Two", "B", "Y");
+        SearchIndex index = index(a, b);
+        assertArrayEquals(new int[] { 0, 1 },
+                index.indicesOf(Arrays.asList(b.getPath(), "/nowhere.mp3", a.getPath())));
+    }
+}
@@ -0,0 +1,120 @@
+package com.music.player.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TrackStoreTest {
+
+    // The store is process-wide: every test uses paths of its own
+    private final TrackStore store = TrackStore.getInstance();
+
+    private static MusicFile track(String path, long size, String title, String artist, String album,
+            long duration) {
+        return new MusicFile("ignored", path, size, title, artist, album, duration);
+    }
+
+    @Test
+    public void sameMetadataSharesRow() {
+        MusicFile a = track("/t/same.mp3", 100, "Title", "Artist", "Album", 2000);
+        MusicFile b = track("/t/same.mp3", 100, "Title", "Artist", "Album", 2000);
+        assertEquals(a.getId(), b.getId());
+    }
+
+    @Test
+    public void changedMetadataAddsRowAndKeepsOldOne() {
+        MusicFile before = track("/t/retag.mp3", 100, "Old", "Artist", "Album", 2000);
+        MusicFile after = track("/t/retag.mp3", 100, "New", "Artist", "Album", 2000);
+
+        assertNotEquals(before.getId(), after.getId());
+        assertEquals("Old", before.getTitle());
+        assertEquals("New", after.getTitle());
+        assertSame(before.getPath(), after.getPath());
+        assertEquals(before, after);
+    }
+
+    @Test
+    public void trackIdSurvivesRetag() {
+        MusicFile first = track("/t/track-id.mp3", 1, "A", null, null, 1);
+        MusicFile second = track("/t/track-id.mp3", 1, "B", null, null, 1);
+        MusicFile other = track("/t/track-id-other.mp3", 1, "A", null, null, 1);
+        assertEquals(first.getTrackId(), second.getTrackId());
+        assertNotEquals(first.getTrackId(), other.getTrackId());
+    }
+
+    @Test
+    public void columnsRoundTrip() {
+        MusicFile music = track("/t/columns.flac", 12345678L, "T", "Ar", "Al", 301000L);
+        assertEquals("/t/columns.flac", music.getPath());
+        assertEquals("T", music.getTitle());
+        assertEquals("Ar", music.getArtist());
+        assertEquals("Al", music.getAlbum());
+        assertEquals(12345678L, music.getSize());
+        assertEquals(301000L, music.getDuration());
+    }
+
+    @Test
+    public void nullTagsStayNull() {
+        MusicFile music = track("/t/untagged.mp3", 1, null, null, null, 0);
+        assertNull(music.getTitle());
+        assertNull(music.getArtist());
+        assertNull(music.getAlbum());
+        assertEquals(music.getId(), track("/t/untagged.mp3", 1, null, null, null, 0).getId());
+    }
+
+    @Test
+    public void artistAndAlbumNamesAreShared() {
+        MusicFile a = track("/t/shared-1.mp3", 1, "One", new String("Band"), new String("Record"), 1);
+        MusicFile b = track("/t/shared-2.mp3", 1, "Two", new String("Band"), new String("Record"), 1);
+        assertSame(a.getArtist(), b.getArtist());
+        assertSame(a.getAlbum(), b.getAlbum());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        List<MusicFile> kept = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            kept.add(track("/t/grow-" + i + ".mp3", i, String.valueOf(i), null, null, i));
+        }
+        assertEquals("0", kept.get(0).getTitle());
+        assertEquals(999L, kept.get(999).getSize());
+        assertEquals("/t/grow-999.mp3", kept.get(999).getPath());
+    }
+
+    @Test
+    public void unreferencedRowsAreReused() throws InterruptedException {
+        MusicFile kept = track("/t/reuse-kept.mp3", 1, "Kept", "Keeper", "Album", 1);
+        int baseline = store.size();
+
+        // Re-tag one file over and over, dropping every handle: without reuse
+        // the store would grow by one row per version
+        for (int i = 0; i < 20000; i++) {
+            track("/t/reuse.mp3", 1, "Version " + i, "Artist " + i, "Album", 1);
+            if (i % 2000 == 0) {
+                System.gc();
+            }
+        }
+        System.gc();
+        Thread.sleep(10);
+        assertTrue("store grew to " + store.size(), store.size() < baseline + 10000);
+
+        // Rows still referenced are untouched by the reuse
+        assertEquals("Kept", kept.getTitle());
+        assertEquals("Keeper", kept.getArtist());
+        assertEquals("/t/reuse-kept.mp3", kept.getPath());
+    }
+
+    @Test
+    public void musicFileIsHandleToRow() {
+        MusicFile music = track("/t/handle.mp3", 5, "H", "A", "B", 7);
+        assertEquals("H", music.getTitle());
+        assertEquals("handle", MusicFile.fileStem(music.getPath()));
+    }
+}
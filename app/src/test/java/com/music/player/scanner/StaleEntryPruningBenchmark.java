@@ -0,0 +1,168 @@
+package com.music.player.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Times stale-row pruning of the metadata cache at up to 50k rows, the old
+ * per-row way against the temp-table anti-join of
+ * MusicMetadataCache.deleteMissing. Runs the same SQL through sqlite-jdbc,
+ * since android.database is not available on the JVM.
+ *
+ * Skipped unless run with {@code -Dbenchmark=true}:
+ * {@code ./gradlew :app:testDebugUnitTest -Dbenchmark=true --tests '*PruningBenchmark'}
+ */
+public class StaleEntryPruningBenchmark {
+
+    private static final int[] SIZES = { 12500, 25000, 50000 };
+    private static final int WARMUP_SIZE = 5000;
+    // One track in this many is gone from disk
+    private static final int STALE_EVERY = 100;
+
+    private File dbFile;
+    private Connection db;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        dbFile = File.createTempFile("prune", ".db");
+        db = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        try (Statement st = db.createStatement()) {
+            st.execute("PRAGMA journal_mode=WAL");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (db != null) {
+            db.close();
+        }
+        if (dbFile != null) {
+            dbFile.delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+        }
+    }
+
+    @Test
+    public void pruneScalesLinearly() throws Exception {
+        // Warm-up so the first reported size is not paying for the JIT
+        List<String> warm = seed(WARMUP_SIZE);
+        time(() -> pruneRowByRow(new ArrayList<>(warm)), WARMUP_SIZE);
+        seed(WARMUP_SIZE);
+        time(() -> pruneAntiJoin(new HashSet<>(warm)), WARMUP_SIZE);
+
+        for (int size : SIZES) {
+            List<String> current = seed(size);
+            long before = time(() -> pruneRowByRow(new ArrayList<>(current)), size);
+            seed(size);
+            long after = time(() -> pruneAntiJoin(new HashSet<>(current)), size);
+            System.out.println(size + " rows, " + (size / STALE_EVERY) + " stale: row-by-row "
+                    + before + " ms, anti-join " + after + " ms");
+        }
+    }
+
+    private interface Prune {
+        int run() throws SQLException;
+    }
+
+    private long time(Prune prune, int size) throws SQLException {
+        long start = System.nanoTime();
+        int removed = prune.run();
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertEquals(size / STALE_EVERY, removed);
+        return ms;
+    }
+
+    // Fills music_cache with `size` rows; returns the paths still on disk
+    private List<String> seed(int size) throws SQLException {
+        try (Statement st = db.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS music_cache");
+            st.execute("CREATE TABLE music_cache (path TEXT PRIMARY KEY, file_size INTEGER NOT NULL, "
+                    + "last_modified INTEGER NOT NULL, title TEXT, artist TEXT, album TEXT, dir TEXT)");
+        }
+        List<String> current = new ArrayList<>(size);
+        db.setAutoCommit(false);
+        try (PreparedStatement insert = db.prepareStatement(
+                "INSERT INTO music_cache VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < size; i++) {
+                String dir = "/storage/emulated/0/Music/Artist " + (i / 200) + "/Album " + (i / 12);
+                String path = dir + "/" + String.format("%02d", i % 12) + " Track " + i + ".mp3";
+                insert.setString(1, path);
+                insert.setLong(2, 4000000 + i);
+                insert.setLong(3, 1700000000000L + i);
+                insert.setString(4, "Track " + i);
+                insert.setString(5, "Artist " + (i / 200));
+                insert.setString(6, "Album " + (i / 12));
+                insert.setString(7, dir);
+                insert.executeUpdate();
+                if (i % STALE_EVERY != 0) {
+                    current.add(path);
+                }
+            }
+        }
+        db.commit();
+        db.setAutoCommit(true);
+        return current;
+    }
+
+    // Before: a list lookup per cached row, then one autocommit DELETE per stale row
+    private int pruneRowByRow(List<String> currentPaths) throws SQLException {
+        List<String> toDelete = new ArrayList<>();
+        try (Statement st = db.createStatement();
+                ResultSet rs = st.executeQuery("SELECT path FROM music_cache")) {
+            while (rs.next()) {
+                String cachedPath = rs.getString(1);
+                if (!currentPaths.contains(cachedPath)) {
+                    toDelete.add(cachedPath);
+                }
+            }
+        }
+        try (PreparedStatement delete = db.prepareStatement("DELETE FROM music_cache WHERE path=?")) {
+            for (String p : toDelete) {
+                delete.setString(1, p);
+                delete.executeUpdate();
+            }
+        }
+        return toDelete.size();
+    }
+
+    // After: the SQL of MusicMetadataCache.deleteMissing, in one transaction
+    private int pruneAntiJoin(Collection<String> keep) throws SQLException {
+        db.setAutoCommit(false);
+        try (Statement st = db.createStatement()) {
+            st.execute("CREATE TEMP TABLE IF NOT EXISTS scan_keep (path TEXT PRIMARY KEY)");
+            st.execute("DELETE FROM temp.scan_keep");
+            try (PreparedStatement insert = db.prepareStatement(
+                    "INSERT OR IGNORE INTO temp.scan_keep (path) VALUES (?)")) {
+                for (String path : keep) {
+                    insert.setString(1, path);
+                    insert.executeUpdate();
+                }
+            }
+            int removed = st.executeUpdate("DELETE FROM music_cache WHERE NOT EXISTS "
+                    + "(SELECT 1 FROM temp.scan_keep k WHERE k.path = music_cache.path)");
+            st.execute("DELETE FROM temp.scan_keep");
+            db.commit();
+            return removed;
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+}